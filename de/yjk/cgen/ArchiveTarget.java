@@ -13,6 +13,35 @@ import java.util.Collection;
  */
 public class ArchiveTarget extends Target
 {
+	/**
+	 * How the archive is updated when some of its objects change.
+	 * In all modes, the archiver also updates the symbol index,
+	 * and the members of objects that are no longer dependencies
+	 * are only removed along with the archive, such as by "clean".
+	 */
+	public enum Mode
+	{
+		/** copy all the objects into the archive again */
+		FULL,
+		/** only copy the objects that changed into the archive */
+		INCREMENTAL,
+		/**
+		 * only reference the objects from a thin archive,
+		 * updating the references of the objects that changed.
+		 * The archive cannot be moved away from the objects.
+		 */
+		THIN
+	}
+
+	/**
+	 * how the archive is updated.
+	 * FULL by default
+	 */
+	private Mode mode;
+
+	/** modifier of the archive flags that creates a thin archive */
+	private static final String THIN_MODIFIER = "T";
+
 	/**
 	 * Calls corresponding superconstructor in Target
 	 * @param n	n in superconstructor
@@ -21,16 +50,41 @@ public class ArchiveTarget extends Target
 	public ArchiveTarget(String n, Collection<String> ds)
 	{
 		super(n, ds);
+		mode = Mode.FULL;
+	}
+
+	/**
+	 * Get how the archive is updated
+	 * @return	mode
+	 */
+	public Mode getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * Set how the archive is updated.
+	 * Archives that already exist must be removed
+	 * after changing to or from the thin mode.
+	 * @param m	the new value for "mode"
+	 */
+	public void setMode(Mode m)
+	{
+		mode = m;
 	}
 
 	protected void genCommand(MakeFormatter output) throws IOException
 	{
-		String
+		String flags = MakeFormatter.genUseVar(Makefile.AR_FLAGS_VAR);
+		String inputs = mode == Mode.FULL ? ALL_IN_VAR : CHANGED_IN_VAR;
+		String command;
+
+		if (mode == Mode.THIN) {
+			flags += THIN_MODIFIER;
+		}
 		command = MakeFormatter
 			  .genList(MakeFormatter.genUseVar(Makefile.AR_VAR),
-				   MakeFormatter.genUseVar(Makefile
-							   .AR_FLAGS_VAR),
-				   Makefile.USE_OUT_IN_VARS);
+				   flags, OUT_VAR, genInputs(inputs));
 		output.write(command);
 	}
 }
@@ -0,0 +1,185 @@
+/**
+ * BatchCompileTarget.java
+ * Batch of sources compiled by one compiler process
+ */
+package de.yjk.cgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Stamp target of a batch of sources with the same extension,
+ * whose recipe compiles the sources that changed since the last batch
+ * in one compiler process,
+ * so that the compiler driver starts once for the whole batch.
+ * If any other dependency, such as a precompiled header, changed,
+ * all the sources of the batch are compiled.
+ * The stamp gets the time from before compiling,
+ * so that the objects are newer than it,
+ * and sources changed while compiling are compiled by the next batch.
+ * The objects depend on their sources, and are made after the stamp,
+ * without depending on it,
+ * so that only the objects of the sources that the batch compiled
+ * are out of date, and are only compiled one by one if they are missing.
+ * Since make checks the time of an object again after its recipe,
+ * the archives are updated with only those objects,
+ * and a build without changes runs no recipes.
+ */
+public class BatchCompileTarget extends Target
+{
+	/** extension of the sources */
+	private String source_ext;
+	/**
+	 * are the objects in the output directory,
+	 * instead of the directory of the sources?
+	 */
+	private boolean out_of_tree;
+	/** the objects compiled from the sources */
+	private List<String> objects;
+
+	/** extension of the stamp of the batch being compiled */
+	public static final String TEMP_EXT = ".tmp";
+	/** extension of the stamps */
+	public static final String STAMP_EXT = ".stamp";
+	/** command creating the stamp of the batch being compiled */
+	private static final String
+	START_CMD = "touch " + OUT_VAR + TEMP_EXT;
+	/** command replacing the stamp after the batch was compiled */
+	private static final String
+	END_CMD = "mv " + OUT_VAR + TEMP_EXT + " " + OUT_VAR;
+	/** command changing into the output directory */
+	private static final String
+	OUT_DIR_CMD = "cd " + MakeFormatter.genUseVar(Makefile.OUT_DIR_VAR) +
+		      " &&";
+	/** flag to only compile, without linking */
+	private static final String COMPILE_ONLY_FLAG = "-c";
+	/** built-in variable for the first dependency */
+	private static final String FIRST_IN_VAR = "$<";
+	/**
+	 * command compiling the object only if it is missing,
+	 * since the batch compiled it if its source changed
+	 */
+	private static final String MISSING_CMD = "test -f " + OUT_VAR + " ||";
+	/**
+	 * C preprocessor flags,
+	 * with the include directories made absolute,
+	 * so that they still apply from the output directory
+	 */
+	private static final String
+	ABSOLUTE_CPPFLAGS = "$(foreach flag,$(CPPFLAGS)," +
+			    "$(if $(filter -I%,$(flag))," +
+			    "-I$(abspath $(flag:-I%=%)),$(flag)))";
+
+	/**
+	 * Calls Target(String, Collection<String>) superconstructor,
+	 * and records the extension of the sources
+	 * @param n	n in superconstructor
+	 * @param ds	the sources
+	 * @param se	source_ext
+	 * @param oot	out_of_tree
+	 * @param os	objects
+	 */
+	public BatchCompileTarget(String n, Collection<String> ds, String se,
+				  boolean oot, List<String> os)
+	{
+		super(n, ds);
+		source_ext = se;
+		out_of_tree = oot;
+		objects = os;
+	}
+
+	/**
+	 * Generate the compiler and flags for the sources
+	 * @param cppflags	the C preprocessor flags
+	 * @return		the command, without the inputs
+	 */
+	private String genCompiler(String cppflags)
+	{
+		boolean is_c = Makefile.C_EXT.equals(source_ext);
+		String compiler_var = is_c ? Makefile.CC_VAR : Makefile.CPP_VAR;
+		String flags_var = is_c ? Makefile.CFLAGS_VAR :
+					  Makefile.CXXFLAGS_VAR;
+
+		return MakeFormatter.genList(MakeFormatter
+					     .genUseVar(compiler_var),
+					     MakeFormatter.genUseVar(flags_var),
+					     cppflags, COMPILE_ONLY_FLAG);
+	}
+
+	/**
+	 * Generate the static pattern rule making the objects
+	 * depend on their sources, after the stamp,
+	 * which keeps make from compiling them with the implicit rules
+	 * @param output	the output stream
+	 * @throws IOException	if writing failed
+	 */
+	public void genObjectsRule(MakeFormatter output) throws IOException
+	{
+		String object_pattern = "%" + Makefile.OBJ_EXT;
+
+		if (out_of_tree) {
+			object_pattern = MakeFormatter
+					 .genUseVar(Makefile.OUT_DIR_VAR) +
+					 File.separator + object_pattern;
+		}
+		Makefile.writeRuleHeader(output,
+					 MakeFormatter
+					 .genList(Makefile.toArray(objects)),
+					 object_pattern +
+					 Makefile.RULE_NAME_END,
+					 "%" + source_ext,
+					 Makefile.ORDER_ONLY_MARK, getName());
+		output.indent();
+		output.write(MakeFormatter
+			     .genList(MISSING_CMD,
+				      genCompiler(MakeFormatter
+						  .genUseVar(Makefile
+							     .CPPFLAGS_VAR)),
+				      OUTPUT_FLAG, OUT_VAR, FIRST_IN_VAR));
+		output.unindent();
+		output.newLine();
+	}
+
+	/**
+	 * Also the stamp of the batch being compiled
+	 * @return	the paths of the files, in a new list
+	 */
+	public List<String> getByproducts()
+	{
+		List<String> byproducts = super.getByproducts();
+
+		byproducts.add(getName() + TEMP_EXT);
+		return byproducts;
+	}
+
+	protected void genCommand(MakeFormatter output) throws IOException
+	{
+		String source_pattern = "%" + source_ext;
+		String cppflags = MakeFormatter
+				  .genUseVar(Makefile.CPPFLAGS_VAR);
+		/* the changed sources, or all if another dependency changed */
+		String sources = "$(if $(filter-out " + source_pattern + "," +
+				 CHANGED_IN_VAR + ")," +
+				 "$(filter " + source_pattern + "," +
+				 ALL_IN_VAR + ")," + CHANGED_IN_VAR + ")";
+		String command;
+
+		if (out_of_tree) {
+			/* the compiler puts the objects in its directory */
+			sources = "$(abspath " + sources + ")";
+			cppflags = ABSOLUTE_CPPFLAGS;
+		}
+		command = MakeFormatter.genList(genCompiler(cppflags), sources);
+		if (out_of_tree) {
+			command = MakeFormatter.genList(OUT_DIR_CMD, command);
+		}
+
+		output.write(START_CMD);
+		output.newLine();
+		output.write(command);
+		output.newLine();
+		output.write(END_CMD);
+	}
+}
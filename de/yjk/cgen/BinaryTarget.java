@@ -14,6 +14,22 @@ public class BinaryTarget extends Target
 {
 	/** are all dependencies generated with the C compiler? */
 	private boolean all_c;
+	/**
+	 * the linker used for this binary,
+	 * or null for the one of the project.
+	 * null by default
+	 */
+	private String linker;
+
+	/**
+	 * format of the linker flag that makes the binary
+	 * load shared libraries from the directory of one of them
+	 */
+	private static final String
+	RPATH_FMT = "-Wl,-rpath,$(abspath $(dir %s))";
+	/** flag selecting the linker used by the compiler driver */
+	private static final String FUSE_LD_FLAG = "-fuse-ld=";
+
 	/**
 	 * Calls Target(String, Collection<String>) superconstructor,
 	 * and records if the target is all C source code
@@ -25,6 +41,17 @@ public class BinaryTarget extends Target
 	{
 		super(n, ds);
 		all_c = ac;
+		linker = null;
+	}
+
+	/**
+	 * Set "linker" field, such as to link a large binary with
+	 * a faster linker than the rest of the project
+	 * @param l	the new value for "linker"
+	 */
+	public void setLinker(String l)
+	{
+		linker = l;
 	}
 
 	protected void genCommand(MakeFormatter output) throws IOException
@@ -35,8 +62,27 @@ public class BinaryTarget extends Target
 		command = MakeFormatter
 			  .genList(MakeFormatter.genUseVar(command_var),
 				   MakeFormatter.genUseVar(Makefile
-							   .CPPFLAGS_VAR),
-				   Makefile.USE_OUT_IN_VARS);
+							   .LDFLAGS_VAR));
+
+		if (linker != null) {
+			command = MakeFormatter.genList(command,
+							FUSE_LD_FLAG + linker);
+		}
+		command = MakeFormatter
+			  .genList(command, OUTPUT_FLAG, OUT_VAR,
+				   genInputs(ALL_IN_VAR),
+				   MakeFormatter.genUseVar(Makefile
+							   .LDLIBS_VAR));
+
+		/* Find the shared libraries where they were built */
+		for (String dependency : getDependencies()) {
+			if (dependency.endsWith(Makefile.SHARED_LIB_EXT)) {
+				command = MakeFormatter
+					  .genList(command,
+						   String.format(RPATH_FMT,
+								 dependency));
+			}
+		}
 		output.write(command);
 	}
 }
@@ -0,0 +1,333 @@
+/**
+ * CacheServer.java
+ * HTTP server sharing compiled objects between machines
+ */
+package de.yjk.cgen;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Remote cache for ObjectCache, for tests and small teams.
+ * Objects are stored in an object cache directory on the server,
+ * with the same eviction, and are accessed by their keys:
+ * "GET /key" responds with the object, or 404 if it is missing,
+ * and "PUT /key" stores the body as the object.
+ * Keys must be hexadecimal digests,
+ * so that requests cannot reach files outside the cache.
+ * The server is not meant for untrusted networks,
+ * since whoever can store objects decides what is linked
+ * into the binaries of everyone using the cache.
+ * It only listens on the loopback interface unless another host is given,
+ * and if OBJECT_CACHE_TOKEN is set, "PUT" must carry the same token,
+ * as "Authorization: Bearer token", which ObjectCache sends
+ * from its own OBJECT_CACHE_TOKEN.
+ *
+ * Usage: CacheServer [--host host] dir max_bytes port
+ * The port can be 0 to use any free port.
+ * The port used is written to the standard output.
+ */
+public class CacheServer implements HttpHandler
+{
+	/** the cache in which the objects are stored */
+	private ObjectCache cache;
+	/** the HTTP server, or null if it is not running */
+	private HttpServer server;
+	/** the threads serving requests, or null if it is not running */
+	private ExecutorService executor;
+	/** the token required to store objects, or null if there is none */
+	private String token;
+	/** number of objects served */
+	private int n_hits;
+	/** number of objects requested, but missing */
+	private int n_misses;
+	/** number of objects stored */
+	private int n_stores;
+
+	/** path under which the objects are */
+	private static final String CONTEXT_PATH = "/";
+	/** method fetching an object */
+	private static final String GET_METHOD = "GET";
+	/** method storing an object */
+	private static final String PUT_METHOD = "PUT";
+	/** the characters allowed in keys */
+	private static final String KEY_CHARS = "0123456789abcdef";
+	/** number of threads serving requests */
+	private static final int N_THREADS = 8;
+	/** exit status if the arguments were wrong */
+	public static final int ERROR_STATUS = 2;
+	/** option before the host to listen on */
+	public static final String HOST_OPT = "--host";
+
+	/**
+	 * @param c	cache
+	 */
+	public CacheServer(ObjectCache c)
+	{
+		cache = c;
+		server = null;
+		executor = null;
+		token = null;
+		n_hits = 0;
+		n_misses = 0;
+		n_stores = 0;
+	}
+
+	/**
+	 * Set "token" field
+	 * @param t	the new value for "token"
+	 */
+	public void setToken(String t)
+	{
+		token = t;
+	}
+
+	/**
+	 * Start serving in the background.
+	 * @param host		the host to listen on,
+	 *			or null for the loopback interface
+	 * @param port		the port to listen on,
+	 *			or 0 for any free port
+	 * @return		the port listened on
+	 * @throws IOException	if the server could not be started
+	 */
+	public int start(String host, int port) throws IOException
+	{
+		InetSocketAddress address;
+
+		if (host == null) {
+			address = new InetSocketAddress(InetAddress
+							.getLoopbackAddress(),
+							port);
+		} else {
+			address = new InetSocketAddress(host, port);
+		}
+		server = HttpServer.create(address, 0);
+		server.createContext(CONTEXT_PATH, this);
+		executor = Executors.newFixedThreadPool(N_THREADS);
+		server.setExecutor(executor);
+		server.start();
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop serving, after the requests being served,
+	 * and end the threads serving them.
+	 */
+	public void stop()
+	{
+		server.stop(0);
+		server = null;
+		executor.shutdown();
+		executor = null;
+	}
+
+	/**
+	 * Describe the counters of the server.
+	 * @return	the numbers of hits, misses and stored objects
+	 */
+	public synchronized String toString()
+	{
+		return "hits " + n_hits + " misses " + n_misses +
+		       " stores " + n_stores;
+	}
+
+	/**
+	 * Check that a key is a hexadecimal digest.
+	 * @param key	the key to check
+	 * @return	true iff the key is valid
+	 */
+	private static boolean isKey(String key)
+	{
+		if (key.isEmpty()) {
+			return false;
+		}
+		for (int char_i = 0; char_i < key.length(); char_i++) {
+			if (KEY_CHARS.indexOf(key.charAt(char_i)) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check that a request carries the token, if one is required.
+	 * @param exchange	the request
+	 * @return		true iff no token is required,
+	 *			or the request carries it
+	 */
+	private boolean isAuthorized(HttpExchange exchange)
+	{
+		String value;
+
+		if (token == null) {
+			return true;
+		}
+		value = exchange.getRequestHeaders()
+			.getFirst(ObjectCache.TOKEN_HEADER);
+		/* compare in constant time */
+		return value != null &&
+		       MessageDigest.isEqual(value.getBytes(),
+					     (ObjectCache.TOKEN_PREFIX + token)
+					     .getBytes());
+	}
+
+	/**
+	 * Respond with a status, with its description as the body.
+	 * Some clients cannot reuse the connection
+	 * after an error without a body.
+	 * @param exchange	the request and response
+	 * @param code		the status code
+	 * @param message	the description of the status
+	 * @throws IOException	if responding failed
+	 */
+	private static void sendStatus(HttpExchange exchange, int code,
+				       String message) throws IOException
+	{
+		byte[] body = (message + "\n").getBytes();
+
+		exchange.sendResponseHeaders(code, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	/**
+	 * Respond with an object in the cache, or 404 if it is missing.
+	 * @param exchange	the request and response
+	 * @param entry		the object
+	 * @throws IOException	if responding failed
+	 */
+	private void sendObject(HttpExchange exchange,
+				File entry) throws IOException
+	{
+		OutputStream body;
+
+		if (!entry.isFile()) {
+			synchronized (this) {
+				n_misses++;
+			}
+			sendStatus(exchange, HttpURLConnection.HTTP_NOT_FOUND,
+				   "Not found");
+			return;
+		}
+		/* mark it as used */
+		entry.setLastModified(System.currentTimeMillis());
+		exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK,
+					     entry.length());
+		body = exchange.getResponseBody();
+		try {
+			Files.copy(entry.toPath(), body);
+		} finally {
+			body.close();
+		}
+		synchronized (this) {
+			n_hits++;
+		}
+	}
+
+	/**
+	 * Store the body of the request as an object.
+	 * The body is written to a temporary file first,
+	 * so that an interrupted request does not leave a partial object.
+	 * @param exchange	the request and response
+	 * @param key		the key of the object
+	 * @throws IOException	if storing or responding failed
+	 */
+	private void receiveObject(HttpExchange exchange,
+				   String key) throws IOException
+	{
+		File temp = File.createTempFile(key, null);
+
+		try {
+			Files.copy(exchange.getRequestBody(), temp.toPath(),
+				   StandardCopyOption.REPLACE_EXISTING);
+			cache.store(temp, key);
+		} finally {
+			temp.delete();
+		}
+		synchronized (this) {
+			n_stores++;
+		}
+		sendStatus(exchange, HttpURLConnection.HTTP_CREATED, "Stored");
+	}
+
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		String key = exchange.getRequestURI().getPath()
+			     .substring(CONTEXT_PATH.length());
+		String method = exchange.getRequestMethod();
+
+		try {
+			if (!isKey(key)) {
+				sendStatus(exchange,
+					   HttpURLConnection.HTTP_BAD_REQUEST,
+					   "Invalid key");
+			} else if (GET_METHOD.equals(method)) {
+				sendObject(exchange, cache.toEntry(key));
+			} else if (PUT_METHOD.equals(method) &&
+				   !isAuthorized(exchange)) {
+				sendStatus(exchange,
+					   HttpURLConnection.HTTP_FORBIDDEN,
+					   "Invalid token");
+			} else if (PUT_METHOD.equals(method)) {
+				receiveObject(exchange, key);
+			} else {
+				sendStatus(exchange,
+					   HttpURLConnection.HTTP_BAD_METHOD,
+					   "Unsupported method");
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		CacheServer cache_server;
+		ObjectCache cache;
+		String host = null;
+		int args_start = 0;
+
+		if (args.length > 1 && HOST_OPT.equals(args[0])) {
+			host = args[1];
+			args_start = 2;
+		}
+		if (args.length != args_start + 3) {
+			System.err.println("Usage: CacheServer " +
+					   "[" + HOST_OPT + " host] " +
+					   "dir max_bytes port");
+			System.exit(ERROR_STATUS);
+		}
+		try {
+			cache = new ObjectCache(new File(args[args_start]),
+						Long.parseLong(args[args_start +
+								    1]),
+						false);
+			cache_server = new CacheServer(cache);
+			cache_server.setToken(System
+					      .getenv(ObjectCache.TOKEN_ENV));
+			System.out.println(cache_server
+					   .start(host,
+						  Integer
+						  .parseInt(args[args_start +
+								 2])));
+		} catch (NumberFormatException nfe) {
+			System.err.println(nfe);
+			System.exit(ERROR_STATUS);
+		} catch (IOException ioe) {
+			System.err.println(ioe);
+			System.exit(ERROR_STATUS);
+		}
+	}
+}
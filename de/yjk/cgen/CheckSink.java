@@ -0,0 +1,129 @@
+/**
+ * CheckSink.java
+ * Compares generated files with the ones on disk, without writing
+ */
+package de.yjk.cgen;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Output sink that never writes,
+ * but records which of the generated files are missing
+ * or differ from the files already under a directory.
+ * Files of a different size are marked as stale
+ * without reading their contents.
+ */
+public class CheckSink extends FileSink
+{
+	/** size of the buffer for reading files on disk */
+	private static final int READ_SIZE = 4096;
+
+	/** paths of the files that are missing or differ */
+	private List<String> stale_paths;
+
+	/**
+	 * @param rd	the directory containing the files to check
+	 */
+	public CheckSink(File rd)
+	{
+		super(rd);
+		stale_paths = new ArrayList<String>();
+	}
+
+	/**
+	 * Compare the contents of a file on disk
+	 * with generated contents of the same size.
+	 * @param file		the file on disk
+	 * @param contents	array containing the generated contents
+	 * @param length	number of bytes of generated contents
+	 * @return		true iff the contents are the same
+	 * @throws IOException	if reading the file failed
+	 */
+	private static boolean sameContents(File file, byte[] contents,
+					    int length) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		byte[] read_buffer = new byte[READ_SIZE];
+		int offset = 0;
+
+		try {
+			while (offset < length) {
+				int n_read = in.read(read_buffer, 0,
+						     Math.min(READ_SIZE,
+							      length - offset));
+
+				if (n_read < 0) {
+					return false;
+				}
+				for (int read_i = 0; read_i < n_read;
+				     read_i++) {
+					if (read_buffer[read_i] !=
+					    contents[offset + read_i]) {
+						return false;
+					}
+				}
+				offset += n_read;
+			}
+			return in.read() < 0;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Check a generated file against the one on disk,
+	 * and record it as stale if it is missing or differs.
+	 * @param path		path of the file relative to the root
+	 *			directory
+	 * @param contents	array containing the generated contents
+	 * @param length	number of bytes of generated contents
+	 * @return		true iff the file is stale
+	 * @throws IOException	if reading the file failed
+	 */
+	protected boolean check(String path, byte[] contents,
+				int length) throws IOException
+	{
+		File file = toFile(path);
+
+		/* only read files that could possibly be the same */
+		if (!file.isFile() || file.length() != length ||
+		    !sameContents(file, contents, length)) {
+			synchronized (this) {
+				stale_paths.add(path);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Only check the file, without writing it.
+	 * @param path		path of the file relative to the root
+	 *			directory
+	 * @param contents	array containing the generated contents
+	 * @param length	number of bytes of generated contents
+	 * @throws IOException	if reading the file failed
+	 */
+	public void write(String path, byte[] contents,
+			  int length) throws IOException
+	{
+		check(path, contents, length);
+	}
+
+	/**
+	 * @return	sorted paths of the files that are missing or differ
+	 */
+	public synchronized List<String> getStalePaths()
+	{
+		List<String> sorted = new ArrayList<String>(stale_paths);
+
+		Collections.sort(sorted);
+		return sorted;
+	}
+}
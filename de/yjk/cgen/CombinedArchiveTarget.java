@@ -0,0 +1,113 @@
+/**
+ * CombinedArchiveTarget.java
+ * Archive file combining other archives
+ */
+package de.yjk.cgen;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Archive file target that combines object files
+ * and the members of other archives, such as those of subdirectories,
+ * so that a link scans one archive instead of many.
+ * Normal archives are combined by an MRI script,
+ * which make writes next to the target;
+ * thin archives reference the members of the other thin archives.
+ * The archive is always created again from all of its dependencies.
+ */
+public class CombinedArchiveTarget extends ArchiveTarget
+{
+	/** extension of the MRI script, after the name of the target */
+	public static final String SCRIPT_EXT = ".mri";
+	/** path of the MRI script */
+	private static final String SCRIPT = OUT_VAR + SCRIPT_EXT;
+	/** format of writing a line into the MRI script */
+	private static final String
+	SCRIPT_LINE_FMT = "$(file >>" + SCRIPT + ",%s)";
+	/** format of writing a line for each of a list into the MRI script */
+	private static final String
+	SCRIPT_EACH_FMT = "$(foreach f,%s,$(file >>" + SCRIPT + ",%s $f))";
+	/** start of the MRI script, creating the archive */
+	private static final String
+	SCRIPT_START = "$(file >" + SCRIPT + ",create " + OUT_VAR + ")";
+	/** the dependencies that are archives */
+	private static final String
+	ARCHIVES = "$(filter %" + Makefile.ARCHIVE_EXT + "," +
+		   ALL_IN_VAR + ")";
+	/** the dependencies that are object files */
+	private static final String
+	OBJECTS = "$(filter-out %" + Makefile.ARCHIVE_EXT + "," +
+		  ALL_IN_VAR + ")";
+	/* MRI commands */
+	/** command adding an object file */
+	private static final String ADD_OBJECT_CMD = "addmod";
+	/** command adding the members of an archive */
+	private static final String ADD_ARCHIVE_CMD = "addlib";
+	/** command writing the archive */
+	private static final String SAVE_CMD = "save";
+	/** command ending the script */
+	private static final String END_CMD = "end";
+	/** archiver flag reading an MRI script from the standard input */
+	private static final String SCRIPT_FLAG = "-M";
+	/** modifier of the archive flags that creates a thin archive */
+	private static final String THIN_MODIFIER = "T";
+
+	/**
+	 * Calls corresponding superconstructor in ArchiveTarget
+	 * @param n	n in superconstructor
+	 * @param ds	ds in superconstructor,
+	 *		with the archives to combine after the object files
+	 */
+	public CombinedArchiveTarget(String n, Collection<String> ds)
+	{
+		super(n, ds);
+	}
+
+	public List<String> getByproducts()
+	{
+		List<String> byproducts = super.getByproducts();
+
+		if (getMode() != Mode.THIN) {
+			byproducts.add(getName() + SCRIPT_EXT);
+		}
+		return byproducts;
+	}
+
+	protected void genCommand(MakeFormatter output) throws IOException
+	{
+		String archiver = MakeFormatter.genUseVar(Makefile.AR_VAR);
+
+		if (getMode() == Mode.THIN) {
+			/* start again, so that no old members are kept */
+			output.write(MakeFormatter
+				     .genList(MakeFormatter
+					      .genUseVar(Makefile.RM_VAR),
+					      OUT_VAR));
+			output.newLine();
+			output.write(MakeFormatter
+				     .genList(archiver,
+					      MakeFormatter
+					      .genUseVar(Makefile
+							 .AR_FLAGS_VAR) +
+					      THIN_MODIFIER,
+					      OUT_VAR, genInputs(ALL_IN_VAR)));
+			return;
+		}
+
+		/*
+		 * Write the script as the line is expanded,
+		 * and run it in the same line
+		 */
+		output.write(SCRIPT_START +
+			     String.format(SCRIPT_EACH_FMT, OBJECTS,
+					   ADD_OBJECT_CMD) +
+			     String.format(SCRIPT_EACH_FMT, ARCHIVES,
+					   ADD_ARCHIVE_CMD) +
+			     String.format(SCRIPT_LINE_FMT, SAVE_CMD) +
+			     String.format(SCRIPT_LINE_FMT, END_CMD) +
+			     MakeFormatter.genList(archiver, SCRIPT_FLAG,
+						   "<" + SCRIPT));
+	}
+}
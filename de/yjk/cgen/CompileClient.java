@@ -0,0 +1,369 @@
+/**
+ * CompileClient.java
+ * Compiler launcher that sends compiles to CompileWorkers
+ */
+package de.yjk.cgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs as the launcher of compile commands,
+ * preprocessing each source locally,
+ * and sending the preprocessed source to one of the CompileWorkers,
+ * which compiles it and returns the object.
+ * The workers are tried in turn, starting from one chosen by the process,
+ * so that the jobs are spread over them.
+ * If no worker can be reached within the timeout,
+ * or the compile fails remotely,
+ * the source is compiled locally,
+ * which also reports the errors with the original file names.
+ * Commands that are not simple compiles of one object are run directly.
+ *
+ * Usage: CompileClient workers timeout_ms compiler argument ...
+ * where workers is a list of "host:port" separated by spaces.
+ */
+public class CompileClient
+{
+	/** the addresses of the workers */
+	private List<InetSocketAddress> workers;
+	/** the timeout of connecting to a worker, in milliseconds */
+	private int timeout_ms;
+
+	/** exit status if the arguments were wrong */
+	public static final int ERROR_STATUS = 2;
+	/** separator between host and port */
+	private static final String PORT_SEPARATOR = ":";
+	/** separators between workers */
+	private static final String WORKER_SEPARATORS = "\\s+";
+	/**
+	 * timeout of reading the response of a worker, in milliseconds,
+	 * which is long enough for the largest compiles,
+	 * but still ends the build if a worker hangs
+	 */
+	private static final int READ_TIMEOUT_MS = 10 * 60 * 1000;
+	/** flag to only compile, without linking */
+	private static final String COMPILE_ONLY_FLAG = "-c";
+	/** flag to only preprocess, to the standard output */
+	private static final String PREPROCESS_FLAG = "-E";
+	/** start of preprocessor flags, which are not passed to the worker */
+	private static final String[] PREPROCESSOR_PREFIXES = {"-I", "-D",
+							       "-U"};
+	/** preprocessor flags followed by an argument */
+	private static final String[] PREPROCESSOR_ARG_FLAGS = {"-I", "-D",
+								"-U",
+								"-include",
+								"-imacros",
+								"-isystem",
+								"-iquote",
+								"-idirafter"};
+
+	/**
+	 * @param w	workers
+	 * @param t	timeout_ms
+	 */
+	public CompileClient(List<InetSocketAddress> w, int t)
+	{
+		workers = w;
+		timeout_ms = t;
+	}
+
+	/**
+	 * Parse a list of workers.
+	 * @param list	the workers, as "host:port" separated by spaces
+	 * @return	the addresses of the workers
+	 * @throws NumberFormatException	if a port is not a number
+	 */
+	public static List<InetSocketAddress> parseWorkers(String list)
+	{
+		List<InetSocketAddress> addresses;
+
+		addresses = new ArrayList<InetSocketAddress>();
+		if (list.trim().isEmpty()) {
+			return addresses;
+		}
+		for (String worker : list.trim().split(WORKER_SEPARATORS)) {
+			int port_start = worker.lastIndexOf(PORT_SEPARATOR);
+			String host;
+			int port;
+
+			if (port_start < 0) {
+				throw new NumberFormatException(worker);
+			}
+			host = worker.substring(0, port_start);
+			port = Integer.parseInt(worker
+						.substring(port_start + 1));
+			addresses.add(InetSocketAddress.createUnresolved(host,
+									 port));
+		}
+		return addresses;
+	}
+
+	/**
+	 * Find the source compiled by a command.
+	 * @param command	the command and its arguments
+	 * @return		the index of the source in command,
+	 *			or -1 if there is no single source
+	 */
+	private static int findSource(List<String> command)
+	{
+		int source_i = -1;
+
+		for (int arg_i = 1; arg_i < command.size(); arg_i++) {
+			for (String code_ext : Makefile.CODE_EXTS) {
+				if (!command.get(arg_i).endsWith(code_ext)) {
+					continue;
+				}
+				if (source_i >= 0) {
+					return -1;
+				}
+				source_i = arg_i;
+			}
+		}
+		return source_i;
+	}
+
+	/**
+	 * Check if an argument is a preprocessor flag,
+	 * which only matters for preprocessing.
+	 * @param arg	the argument
+	 * @return	0 if it is not a preprocessor flag,
+	 *		1 if it is one by itself,
+	 *		or 2 if it is followed by its argument
+	 */
+	private static int countPreprocessorArgs(String arg)
+	{
+		for (String flag : PREPROCESSOR_ARG_FLAGS) {
+			if (flag.equals(arg)) {
+				return 2;
+			}
+		}
+		for (String prefix : PREPROCESSOR_PREFIXES) {
+			if (arg.startsWith(prefix)) {
+				return 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Preprocess a source locally.
+	 * @param command	the compile command and its arguments
+	 * @param output_i	the index of the output file in command
+	 * @return		the preprocessed source,
+	 *			or null if preprocessing failed
+	 * @throws IOException	if the compiler could not be run
+	 */
+	private static byte[] preprocess(List<String> command,
+					 int output_i) throws IOException
+	{
+		List<String> preprocess = new ArrayList<String>();
+		ByteArrayOutputStream preprocessed;
+		Process process;
+		InputStream in;
+
+		for (int arg_i = 0; arg_i < command.size(); arg_i++) {
+			String arg = command.get(arg_i);
+
+			if (arg_i != output_i - 1 && arg_i != output_i &&
+			    !COMPILE_ONLY_FLAG.equals(arg)) {
+				preprocess.add(arg);
+			}
+		}
+		preprocess.add(PREPROCESS_FLAG);
+		process = new ProcessBuilder(preprocess)
+			  .redirectError(ProcessBuilder.Redirect.DISCARD)
+			  .start();
+		preprocessed = new ByteArrayOutputStream();
+		in = process.getInputStream();
+		try {
+			in.transferTo(preprocessed);
+		} finally {
+			in.close();
+		}
+		try {
+			if (process.waitFor() != 0) {
+				return null;
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		return preprocessed.toByteArray();
+	}
+
+	/**
+	 * Send a job to a worker, and write the object it returns.
+	 * @param worker	the address of the worker
+	 * @param command	the compile command and its arguments
+	 * @param output_i	the index of the output file in command
+	 * @param source_i	the index of the source in command
+	 * @param source	the preprocessed source
+	 * @return		true iff the worker compiled the object
+	 * @throws IOException	if the worker could not be reached,
+	 *			or the object could not be written
+	 */
+	private boolean compileRemotely(InetSocketAddress worker,
+					List<String> command, int output_i,
+					int source_i,
+					byte[] source) throws IOException
+	{
+		Socket socket = new Socket();
+		List<String> args = new ArrayList<String>();
+		boolean is_c = command.get(source_i).endsWith(Makefile.C_EXT);
+
+		/* the flags that matter after preprocessing */
+		for (int arg_i = 1; arg_i < command.size(); arg_i++) {
+			String arg = command.get(arg_i);
+			int n_preprocessor_args = countPreprocessorArgs(arg);
+
+			if (n_preprocessor_args > 0) {
+				arg_i += n_preprocessor_args - 1;
+			} else if (arg_i != output_i - 1 &&
+				   arg_i != output_i && arg_i != source_i &&
+				   !COMPILE_ONLY_FLAG.equals(arg)) {
+				args.add(arg);
+			}
+		}
+
+		try {
+			DataOutputStream out;
+			DataInputStream in;
+			byte[] diagnostics;
+			byte[] object;
+			int status;
+
+			socket.connect(new InetSocketAddress(worker
+							     .getHostString(),
+							     worker.getPort()),
+				       timeout_ms);
+			socket.setSoTimeout(READ_TIMEOUT_MS);
+			out = new DataOutputStream(socket.getOutputStream());
+			out.writeUTF(new File(command.get(0)).getName());
+			out.writeUTF(is_c ? CompileWorker.C_PREPROCESSED_EXT :
+					    CompileWorker.CPP_PREPROCESSED_EXT);
+			out.writeInt(args.size());
+			for (String arg : args) {
+				out.writeUTF(arg);
+			}
+			CompileWorker.writeBytes(out, source);
+			out.flush();
+
+			in = new DataInputStream(socket.getInputStream());
+			status = in.readInt();
+			diagnostics = CompileWorker.readBytes(in);
+			object = CompileWorker.readBytes(in);
+			if (status != 0) {
+				return false;
+			}
+			/* warnings */
+			System.err.write(diagnostics);
+			writeObject(object, new File(command.get(output_i)));
+			return true;
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Write an object, replacing the output atomically.
+	 * @param object	the object
+	 * @param output	the output file
+	 * @throws IOException	if writing failed
+	 */
+	private static void writeObject(byte[] object,
+					File output) throws IOException
+	{
+		File temp = ObjectCache.toTemp(output);
+
+		try {
+			Files.write(temp.toPath(), object);
+			Files.move(temp.toPath(), output.toPath(),
+				   StandardCopyOption.ATOMIC_MOVE,
+				   StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Run a compile command on a worker,
+	 * or locally if no worker compiled it.
+	 * @param command	the command and its arguments
+	 * @return		the exit status of the command
+	 */
+	public int run(List<String> command)
+	{
+		int output_i = ObjectCache.findOutput(command);
+		int source_i = findSource(command);
+		int first_worker;
+		byte[] source;
+
+		if (output_i < 0 || source_i < 0 || workers.isEmpty()) {
+			return ObjectCache.runCommand(command);
+		}
+		try {
+			source = preprocess(command, output_i);
+		} catch (IOException ioe) {
+			source = null;
+		}
+		if (source == null) {
+			/* let the compiler report the error */
+			return ObjectCache.runCommand(command);
+		}
+
+		first_worker = (int) (ProcessHandle.current().pid() %
+				      workers.size());
+		for (int worker_i = 0; worker_i < workers.size();
+		     worker_i++) {
+			InetSocketAddress worker;
+
+			worker = workers.get((first_worker + worker_i) %
+					     workers.size());
+			try {
+				if (compileRemotely(worker, command, output_i,
+						    source_i, source)) {
+					return 0;
+				}
+				/* the errors are reported locally */
+				break;
+			} catch (IOException ioe) {
+				/* try the next worker */
+			}
+		}
+		return ObjectCache.runCommand(command);
+	}
+
+	public static void main(String[] args)
+	{
+		CompileClient client;
+
+		if (args.length < 3) {
+			System.err.println("Usage: CompileClient workers " +
+					   "timeout_ms compiler argument ...");
+			System.exit(ERROR_STATUS);
+		}
+		try {
+			client = new CompileClient(parseWorkers(args[0]),
+						   Integer.parseInt(args[1]));
+		} catch (NumberFormatException nfe) {
+			System.err.println(nfe);
+			System.exit(ERROR_STATUS);
+			return;
+		}
+
+		System.exit(client.run(Arrays.asList(args)
+				       .subList(2, args.length)));
+	}
+}
@@ -0,0 +1,463 @@
+/**
+ * CompileWorker.java
+ * Server compiling preprocessed sources for other machines
+ */
+package de.yjk.cgen;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compiles preprocessed sources sent by CompileClient over TCP,
+ * with the compilers installed on this machine,
+ * and returns the objects.
+ * Each connection carries one job.
+ * The request contains the name of the compiler,
+ * the extension of the preprocessed source, ".i" for C or ".ii" for C++,
+ * the compiler arguments, and the preprocessed source.
+ * The response contains the exit status of the compiler,
+ * its diagnostics, and the object, which is empty if compiling failed.
+ * Strings are written as in DataOutput.writeUTF,
+ * and other data are preceded by their lengths as ints.
+ * At most "jobs" compilers run at the same time,
+ * and the other jobs wait for them.
+ * Only the compilers given at startup are run,
+ * and only by name, so that clients cannot run other programs.
+ * Only the arguments that choose the generated code,
+ * the warnings and the language standard are accepted,
+ * except for those naming files or programs on this machine,
+ * and jobs with any other argument are refused,
+ * so that the client compiles them itself.
+ * The sizes of the sources are also limited.
+ * Since there is no authentication, the worker only listens on
+ * the loopback interface unless another host is given,
+ * and the port must then only be reachable from trusted machines.
+ *
+ * Usage: CompileWorker [--host host] port jobs [compiler ...]
+ * The port can be 0 to use any free port.
+ * The port used is written to the standard output.
+ */
+public class CompileWorker
+{
+	/** the compilers that can be run */
+	private List<String> compilers;
+	/** the number of jobs run at the same time */
+	private int jobs;
+	/** the socket accepting jobs, or null if it is not open */
+	private ServerSocket server;
+	/** number of jobs compiled successfully */
+	private int n_compiled;
+	/** number of jobs that failed */
+	private int n_failed;
+
+	/** compilers run by default */
+	public static final String[] DEFAULT_COMPILERS = {"cc", "c++", "gcc",
+							  "g++", "clang",
+							  "clang++"};
+	/** extension of preprocessed C sources */
+	public static final String C_PREPROCESSED_EXT = ".i";
+	/** extension of preprocessed C++ sources */
+	public static final String CPP_PREPROCESSED_EXT = ".ii";
+	/** exit status if the arguments were wrong */
+	public static final int ERROR_STATUS = 2;
+	/** option before the host to listen on */
+	public static final String HOST_OPT = "--host";
+	/** exit status sent if the job was refused */
+	static final int REFUSED_STATUS = -1;
+	/** maximum size of a source, object or diagnostics, in bytes */
+	static final int MAX_BYTES = 1 << 28;
+	/** start of the arguments accepted from clients */
+	private static final String[] ALLOWED_PREFIXES = {"-O", "-f", "-m",
+							  "-g", "-W",
+							  "-std="};
+	/**
+	 * start of the accepted arguments that are still refused,
+	 * because they name files or programs on this machine,
+	 * or pass arguments to other programs
+	 */
+	private static final String[]
+	DENIED_PREFIXES = {"-fplugin", "-fpass-plugin", "-fdump",
+			   "-fprofile", "-fauto-profile", "-fopt-info",
+			   "-fltrans", "-fresolution", "-fsanitize-blacklist",
+			   "-fsanitize-ignorelist", "-fsanitize-coverage-",
+			   "-Wa,", "-Wp,", "-Wl,"};
+	/**
+	 * end of the names of the arguments mapping paths,
+	 * whose values may be paths
+	 */
+	private static final String PREFIX_MAP_SUFFIX = "-prefix-map=";
+	/** separator between an argument and its value */
+	private static final char VALUE_SEPARATOR = '=';
+	/** maximum number of connections waiting to be accepted */
+	private static final int BACKLOG = 64;
+	/** prefix of the temporary files of each job */
+	private static final String TEMP_PREFIX = "job";
+	/** extension of the diagnostics of each job */
+	private static final String DIAGNOSTICS_EXT = ".log";
+	/** flag to only compile, without linking */
+	private static final String COMPILE_ONLY_FLAG = "-c";
+	/** flag before the output file */
+	private static final String OUTPUT_FLAG = "-o";
+
+	/**
+	 * Job compiling one preprocessed source from a connection
+	 */
+	private class Job implements Runnable
+	{
+		/** the connection of the job */
+		private Socket client;
+
+		/**
+		 * @param c	client
+		 */
+		public Job(Socket c)
+		{
+			client = c;
+		}
+
+		/**
+		 * Compile a preprocessed source.
+		 * @param compiler	the name of the compiler
+		 * @param source	the preprocessed source
+		 * @param args		the compiler arguments
+		 * @param out		the stream to write the response to
+		 * @throws IOException	if the compiler could not be run,
+		 *			or writing failed
+		 */
+		private void compile(String compiler, File source,
+				     List<String> args,
+				     DataOutputStream out) throws IOException
+		{
+			File object = new File(source.getPath() +
+					       Makefile.OBJ_EXT);
+			File diagnostics = new File(source.getPath() +
+						    DIAGNOSTICS_EXT);
+			List<String> command = new ArrayList<String>();
+			int status;
+
+			command.add(compiler);
+			command.addAll(args);
+			command.add(COMPILE_ONLY_FLAG);
+			command.add(OUTPUT_FLAG);
+			command.add(object.getPath());
+			command.add(source.getPath());
+			try {
+				status = new ProcessBuilder(command)
+					 .redirectErrorStream(true)
+					 .redirectOutput(diagnostics)
+					 .start().waitFor();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				status = REFUSED_STATUS;
+			}
+			try {
+				byte[] object_bytes = new byte[0];
+
+				if (status == 0) {
+					object_bytes = Files
+						       .readAllBytes(object
+								     .toPath());
+				}
+				out.writeInt(status);
+				writeBytes(out, Files.readAllBytes(diagnostics
+								   .toPath()));
+				writeBytes(out, object_bytes);
+				synchronized (CompileWorker.this) {
+					if (status == 0) {
+						n_compiled++;
+					} else {
+						n_failed++;
+					}
+				}
+			} finally {
+				object.delete();
+				diagnostics.delete();
+			}
+		}
+
+		/**
+		 * Read a job, and compile it if the compiler can be run
+		 * with its arguments.
+		 */
+		public void run()
+		{
+			File source = null;
+
+			try {
+				DataInputStream in;
+				DataOutputStream out;
+				String compiler;
+				String ext;
+				List<String> args = new ArrayList<String>();
+				int n_args;
+
+				in = new DataInputStream(client
+							 .getInputStream());
+				out = new DataOutputStream(client
+							   .getOutputStream());
+				compiler = in.readUTF();
+				ext = in.readUTF();
+				n_args = in.readInt();
+				for (int arg_i = 0; arg_i < n_args; arg_i++) {
+					args.add(in.readUTF());
+				}
+				if (!compilers.contains(compiler) ||
+				    (!C_PREPROCESSED_EXT.equals(ext) &&
+				     !CPP_PREPROCESSED_EXT.equals(ext))) {
+					refuse(out, "Cannot run " + compiler);
+				} else if (findDeniedArg(args) != null) {
+					refuse(out, "Cannot use " +
+						    findDeniedArg(args));
+				} else {
+					source = File
+						 .createTempFile(TEMP_PREFIX,
+								 ext);
+					Files.write(source.toPath(),
+						    readBytes(in));
+					compile(compiler, source, args, out);
+				}
+				out.flush();
+			} catch (IOException ioe) {
+				/* the client compiles it itself */
+			} finally {
+				if (source != null) {
+					source.delete();
+				}
+				try {
+					client.close();
+				} catch (IOException ioe) {
+					/* already closed */
+				}
+			}
+		}
+	}
+
+	/**
+	 * Refuse a job.
+	 * @param out		the stream to write the response to
+	 * @param reason	the reason, sent as the diagnostics
+	 * @throws IOException	if writing failed
+	 */
+	private static void refuse(DataOutputStream out,
+				   String reason) throws IOException
+	{
+		out.writeInt(REFUSED_STATUS);
+		writeBytes(out, (reason + "\n").getBytes());
+		writeBytes(out, new byte[0]);
+	}
+
+	/**
+	 * Check that an argument from a client can be passed
+	 * to the compiler.
+	 * @param arg	the argument
+	 * @return	true iff the argument only chooses
+	 *		the generated code, the warnings or the standard,
+	 *		and names no files or programs on this machine
+	 */
+	static boolean isAllowedArg(String arg)
+	{
+		boolean allowed = false;
+		int value_start = arg.indexOf(VALUE_SEPARATOR);
+
+		for (String prefix : ALLOWED_PREFIXES) {
+			if (arg.startsWith(prefix)) {
+				allowed = true;
+			}
+		}
+		for (String prefix : DENIED_PREFIXES) {
+			if (arg.startsWith(prefix)) {
+				allowed = false;
+			}
+		}
+		/* values that are paths, except in path mappings */
+		if (value_start >= 0 &&
+		    arg.indexOf(File.separatorChar, value_start) >= 0 &&
+		    !arg.substring(0, value_start + 1)
+		     .endsWith(PREFIX_MAP_SUFFIX)) {
+			allowed = false;
+		}
+		return allowed;
+	}
+
+	/**
+	 * Find an argument from a client that cannot be passed
+	 * to the compiler.
+	 * @param args	the arguments
+	 * @return	the first argument that is not allowed,
+	 *		or null if they are all allowed
+	 */
+	static String findDeniedArg(List<String> args)
+	{
+		for (String arg : args) {
+			if (!isAllowedArg(arg)) {
+				return arg;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param c	compilers
+	 * @param j	jobs
+	 */
+	public CompileWorker(List<String> c, int j)
+	{
+		compilers = c;
+		jobs = j;
+		server = null;
+		n_compiled = 0;
+		n_failed = 0;
+	}
+
+	/**
+	 * Write data, preceded by its length.
+	 * @param out		the stream to write to
+	 * @param data		the data to write
+	 * @throws IOException	if writing failed
+	 */
+	static void writeBytes(DataOutputStream out,
+			       byte[] data) throws IOException
+	{
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	/**
+	 * Read data, preceded by its length.
+	 * @param in		the stream to read from
+	 * @return		the data
+	 * @throws IOException	if reading failed,
+	 *			or the length is negative or over MAX_BYTES
+	 */
+	static byte[] readBytes(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		byte[] data;
+
+		if (length < 0 || length > MAX_BYTES) {
+			throw new IOException("Invalid length " + length);
+		}
+		data = new byte[length];
+		in.readFully(data);
+		return data;
+	}
+
+	/**
+	 * Open the socket accepting jobs.
+	 * @param host		the host to listen on,
+	 *			or null for the loopback interface
+	 * @param port		the port to listen on,
+	 *			or 0 for any free port
+	 * @return		the port listened on
+	 * @throws IOException	if the socket could not be opened
+	 */
+	public int open(String host, int port) throws IOException
+	{
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		if (host == null) {
+			server.bind(new InetSocketAddress(InetAddress
+							  .getLoopbackAddress(),
+							  port), BACKLOG);
+		} else {
+			server.bind(new InetSocketAddress(host, port),
+				    BACKLOG);
+		}
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Accept jobs until the socket is closed,
+	 * running at most "jobs" of them at the same time.
+	 * @throws IOException	if accepting failed
+	 */
+	public void serve() throws IOException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(jobs);
+
+		try {
+			while (!server.isClosed()) {
+				executor.execute(new Job(server.accept()));
+			}
+		} catch (IOException ioe) {
+			if (!server.isClosed()) {
+				throw ioe;
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Close the socket, so that serve returns,
+	 * after the jobs that were accepted.
+	 * @throws IOException	if closing failed
+	 */
+	public void close() throws IOException
+	{
+		server.close();
+	}
+
+	/**
+	 * Describe the counters of the worker.
+	 * @return	the numbers of compiled and failed jobs
+	 */
+	public synchronized String toString()
+	{
+		return "compiled " + n_compiled + " failed " + n_failed;
+	}
+
+	public static void main(String[] args)
+	{
+		CompileWorker worker;
+		List<String> compilers;
+		String host = null;
+		int args_start = 0;
+
+		if (args.length > 1 && HOST_OPT.equals(args[0])) {
+			host = args[1];
+			args_start = 2;
+		}
+		if (args.length < args_start + 2) {
+			System.err.println("Usage: CompileWorker " +
+					   "[" + HOST_OPT + " host] " +
+					   "port jobs [compiler ...]");
+			System.exit(ERROR_STATUS);
+		}
+		if (args.length > args_start + 2) {
+			compilers = Arrays.asList(args)
+				    .subList(args_start + 2, args.length);
+		} else {
+			compilers = Arrays.asList(DEFAULT_COMPILERS);
+		}
+		try {
+			worker = new CompileWorker(compilers,
+						   Integer
+						   .parseInt(args[args_start +
+								  1]));
+			System.out.println(worker
+					   .open(host,
+						 Integer
+						 .parseInt(args[args_start])));
+			worker.serve();
+		} catch (NumberFormatException nfe) {
+			System.err.println(nfe);
+			System.exit(ERROR_STATUS);
+		} catch (IOException ioe) {
+			System.err.println(ioe);
+			System.exit(ERROR_STATUS);
+		}
+	}
+}
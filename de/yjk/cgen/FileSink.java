@@ -0,0 +1,72 @@
+/**
+ * FileSink.java
+ * Writes generated files to the real filesystem
+ */
+package de.yjk.cgen;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output sink that writes each file under a directory on disk,
+ * which is normally the root directory of the project itself.
+ */
+public class FileSink implements OutputSink
+{
+	/** the directory under which to write the files */
+	private File root_dir;
+
+	/**
+	 * @param rd	the directory under which to write the files
+	 */
+	public FileSink(File rd)
+	{
+		root_dir = rd;
+	}
+
+	/**
+	 * Find the file on disk for a path from the generator.
+	 * @param path	path relative to the root directory
+	 * @return	the file under root_dir
+	 */
+	protected File toFile(String path)
+	{
+		return new File(root_dir,
+				path.replace(PATH_SEPARATOR,
+					     File.separatorChar));
+	}
+
+	/**
+	 * Write a file under root_dir, replacing any existing one.
+	 * @param path		path relative to the root directory
+	 * @param contents	array containing the contents
+	 * @param length	number of bytes of contents to write
+	 * @throws IOException	if writing failed
+	 */
+	protected void writeFile(String path, byte[] contents,
+				 int length) throws IOException
+	{
+		OutputStream out = new FileOutputStream(toFile(path));
+
+		try {
+			out.write(contents, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void write(String path, byte[] contents,
+			  int length) throws IOException
+	{
+		writeFile(path, contents, length);
+	}
+
+	/**
+	 * Nothing to finish, since each file is closed after writing.
+	 */
+	public void close()
+	{
+	}
+}
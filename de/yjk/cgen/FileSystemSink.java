@@ -0,0 +1,55 @@
+/**
+ * FileSystemSink.java
+ * Writes generated files to a java.nio.file.FileSystem
+ */
+package de.yjk.cgen;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Output sink that writes each file under a directory
+ * of any java.nio.file.FileSystem, such as a zip filesystem.
+ * The filesystem belongs to the caller,
+ * who must close it to complete a zip file.
+ */
+public class FileSystemSink implements OutputSink
+{
+	/** the directory under which to write the files */
+	private Path root_dir;
+
+	/**
+	 * @param rd	the directory under which to write the files
+	 */
+	public FileSystemSink(Path rd)
+	{
+		root_dir = rd;
+	}
+
+	public void write(String path, byte[] contents,
+			  int length) throws IOException
+	{
+		Path file = root_dir.resolve(path);
+		Path parent = file.getParent();
+		OutputStream out;
+
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		out = Files.newOutputStream(file);
+		try {
+			out.write(contents, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Nothing to finish, since the filesystem belongs to the caller.
+	 */
+	public void close()
+	{
+	}
+}
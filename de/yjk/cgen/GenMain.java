@@ -0,0 +1,228 @@
+/**
+ * GenMain.java
+ * Command line entry point that generates or checks the Makefiles
+ * of many projects in one JVM
+ */
+package de.yjk.cgen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates the Makefiles of each project root given on the command line
+ * or in a list file, populating each with all of its subdirectories.
+ * The roots are generated in parallel by a Workspace,
+ * which shares directory listings and identical renderings between them,
+ * and their files are written by one shared GenerationPipeline,
+ * so that the cost of starting the JVM is paid only once.
+ * A root given more than once is only generated once.
+ *
+ * Usage: GenMain [options] [root ...]
+ * Options:
+ * "-f file", which adds the roots listed in the file, one per line,
+ * ignoring empty lines and lines starting with "#";
+ * "-j n", which sets the number of roots generated at the same time;
+ * "--check", which only lists the files that are out of date;
+ * "--update", which only writes the files that are out of date;
+ * "--stats", which prints the pipeline and workspace counters at the end;
+ * "--daemon socket", which serves the single given root
+ * as a GeneratorDaemon.
+ * The exit status is 0 on success, 1 if a check found out-of-date files,
+ * and 2 if any root failed.
+ */
+public class GenMain
+{
+	/* options */
+	/** option for a file listing roots */
+	public static final String LIST_OPT = "-f";
+	/** option for the number of roots generated at the same time */
+	public static final String JOBS_OPT = "-j";
+	/** option to only check the files */
+	public static final String CHECK_OPT = "--check";
+	/** option to only write the files that are out of date */
+	public static final String UPDATE_OPT = "--update";
+	/** option to print the pipeline counters */
+	public static final String STATS_OPT = "--stats";
+	/** option to run a daemon for one root */
+	public static final String DAEMON_OPT = "--daemon";
+	/** start of comment lines in the list file */
+	private static final String COMMENT_START = "#";
+	/* exit statuses */
+	/** exit status if some files are out of date */
+	public static final int STALE_STATUS = 1;
+	/** exit status if the arguments were wrong, or a root failed */
+	public static final int ERROR_STATUS = 2;
+
+	/** the project roots to generate */
+	private List<File> roots;
+	/** number of roots generated at the same time */
+	private int n_jobs;
+	/** only check the files? */
+	private boolean check;
+	/** only write the files that are out of date? */
+	private boolean update;
+	/** print the pipeline counters? */
+	private boolean stats;
+	/** socket on which to serve a daemon, or null */
+	private String daemon_socket;
+
+	public GenMain()
+	{
+		roots = new ArrayList<File>();
+		n_jobs = Runtime.getRuntime().availableProcessors();
+		check = false;
+		update = false;
+		stats = false;
+		daemon_socket = null;
+	}
+
+	/**
+	 * Add the roots listed in a file.
+	 * @param list_name	the name of the file
+	 * @throws IOException	if the file could not be read
+	 */
+	private void addRoots(String list_name) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(list_name));
+		String line;
+
+		try {
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 &&
+				    !line.startsWith(COMMENT_START)) {
+					roots.add(new File(line));
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parse the command line arguments.
+	 * @param args		the arguments
+	 * @return		true iff the arguments were valid
+	 * @throws IOException	if a list file could not be read
+	 */
+	private boolean parseArgs(String[] args) throws IOException
+	{
+		int arg_i;
+
+		for (arg_i = 0; arg_i < args.length; arg_i++) {
+			String arg = args[arg_i];
+			boolean has_value = arg_i + 1 < args.length;
+
+			if (LIST_OPT.equals(arg) && has_value) {
+				addRoots(args[++arg_i]);
+			} else if (JOBS_OPT.equals(arg) && has_value) {
+				try {
+					n_jobs = Integer.parseInt(args[++arg_i]);
+				} catch (NumberFormatException nfe) {
+					return false;
+				}
+			} else if (CHECK_OPT.equals(arg)) {
+				check = true;
+			} else if (UPDATE_OPT.equals(arg)) {
+				update = true;
+			} else if (STATS_OPT.equals(arg)) {
+				stats = true;
+			} else if (DAEMON_OPT.equals(arg) && has_value) {
+				daemon_socket = args[++arg_i];
+			} else if (arg.startsWith("-")) {
+				return false;
+			} else {
+				roots.add(new File(arg));
+			}
+		}
+
+		return n_jobs > 0 && !roots.isEmpty() &&
+		       (daemon_socket == null || roots.size() == 1);
+	}
+
+	/**
+	 * Generate or check all the roots.
+	 * @return	the exit status
+	 */
+	private int run()
+	{
+		GenerationPipeline pipeline = new GenerationPipeline();
+		Workspace workspace = new Workspace();
+		Workspace.Mode mode = check ? Workspace.Mode.CHECK :
+				      update ? Workspace.Mode.UPDATE :
+				      Workspace.Mode.WRITE;
+		List<String> stale_paths;
+		int status = 0;
+
+		try {
+			for (File root_dir : roots) {
+				workspace.addRoot(root_dir);
+			}
+			stale_paths = workspace.generate(pipeline, mode,
+							 n_jobs);
+		} catch (IOException ioe) {
+			System.err.println(ioe);
+			return ERROR_STATUS;
+		}
+		for (Map.Entry<File, IOException> failure :
+		     workspace.getFailures().entrySet()) {
+			System.err.println("Failed to generate " +
+					   failure.getKey() + ": " +
+					   failure.getValue());
+			status = ERROR_STATUS;
+		}
+
+		try {
+			pipeline.close();
+		} catch (IOException ioe) {
+			status = ERROR_STATUS;
+		}
+		if (stats) {
+			System.err.println(pipeline);
+			System.err.println(workspace);
+		}
+
+		for (String stale_path : stale_paths) {
+			System.out.println(stale_path);
+		}
+		if (status == 0 && check && !stale_paths.isEmpty()) {
+			status = STALE_STATUS;
+		}
+		return status;
+	}
+
+	public static void main(String[] args)
+	{
+		GenMain gen_main = new GenMain();
+
+		try {
+			if (!gen_main.parseArgs(args)) {
+				System.err.println("Usage: GenMain " +
+						   "[-f list] [-j jobs] " +
+						   "[--check | --update] " +
+						   "[--stats] " +
+						   "[--daemon socket] " +
+						   "[root ...]");
+				System.exit(ERROR_STATUS);
+			}
+			if (gen_main.daemon_socket != null) {
+				new GeneratorDaemon(gen_main.roots.get(0),
+						    Paths.get(gen_main
+							      .daemon_socket))
+				.serve();
+				return;
+			}
+		} catch (IOException ioe) {
+			System.err.println(ioe);
+			System.exit(ERROR_STATUS);
+		}
+
+		System.exit(gen_main.run());
+	}
+}
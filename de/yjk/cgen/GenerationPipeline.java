@@ -0,0 +1,590 @@
+/**
+ * GenerationPipeline.java
+ * Connects the rendering of Makefile text to the writing of the files,
+ * so that formatting and disk writes can overlap.
+ */
+package de.yjk.cgen;
+
+import java.io.CharArrayWriter;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-stage pipeline for generating files.
+ * The rendering stage takes a buffer, formats a file into it,
+ * and submits it to a bounded queue.
+ * A small pool of writer threads drains the queue into an OutputSink,
+ * which is usually the disk, and returns the buffers for reuse.
+ * Since there is a fixed number of buffers,
+ * the rendering stage blocks when the writers fall behind,
+ * which caps the memory used by rendered files.
+ * Counters for each stage show which one is the bottleneck.
+ * Several projects can share one pipeline at the same time,
+ * each tracking its own files in a Batch.
+ */
+public class GenerationPipeline
+{
+	/** default number of writer threads */
+	public static final int DEFAULT_WRITERS = 2;
+	/** default number of rendered files that can wait to be written */
+	public static final int DEFAULT_CAPACITY = 16;
+	/** initial size of each buffer, in characters */
+	private static final int BUFFER_SIZE = 4096;
+
+	/** buffers that are free to be rendered into */
+	private BlockingQueue<RenderBuffer> free_buffers;
+	/** rendered buffers waiting to be written */
+	private BlockingQueue<RenderBuffer> pending;
+	/** the writer threads */
+	private DrainThread[] writers;
+	/** number of files submitted by all batches, but not yet written */
+	private int outstanding;
+
+	/* rendering stage counters */
+	/** number of files rendered */
+	private AtomicLong rendered_files;
+	/** number of characters rendered */
+	private AtomicLong rendered_chars;
+	/** time spent rendering, in nanoseconds */
+	private AtomicLong render_nanos;
+	/** time spent waiting for a free buffer, in nanoseconds */
+	private AtomicLong render_wait_nanos;
+	/* writing stage counters */
+	/** number of files written */
+	private AtomicLong written_files;
+	/** number of bytes written */
+	private AtomicLong written_bytes;
+	/** time spent writing, in nanoseconds */
+	private AtomicLong write_nanos;
+	/** time spent by the writers waiting for work, in nanoseconds */
+	private AtomicLong write_wait_nanos;
+
+	/**
+	 * Buffer for one rendered file,
+	 * along with its destination and the start time of its rendering
+	 */
+	static class RenderBuffer extends CharArrayWriter
+	{
+		/** the batch to which the file belongs */
+		private Batch batch;
+		/** the path of the file in the batch's sink */
+		private String path;
+		/** when the rendering started, from System.nanoTime() */
+		private long render_start;
+
+		public RenderBuffer()
+		{
+			super(BUFFER_SIZE);
+			batch = null;
+			path = null;
+			render_start = 0;
+		}
+
+		/**
+		 * @return	view of the contents, without copying them
+		 */
+		CharBuffer getChars()
+		{
+			return CharBuffer.wrap(buf, 0, count);
+		}
+
+		/**
+		 * Closing does nothing,
+		 * so that formatters wrapping this buffer can be closed,
+		 * leaving the contents intact.
+		 */
+		public void close()
+		{
+		}
+	}
+
+	/**
+	 * Complete constructor
+	 * @param n_writers	the number of writer threads
+	 * @param capacity	the number of rendered files
+	 *			that can wait to be written
+	 */
+	public GenerationPipeline(int n_writers, int capacity)
+	{
+		/*
+		 * Besides the ones in the queue,
+		 * each writer holds one buffer, and so does the renderer.
+		 */
+		int n_buffers = capacity + n_writers + 1;
+		int buffer_i;
+
+		free_buffers = new ArrayBlockingQueue<RenderBuffer>(n_buffers);
+		pending = new ArrayBlockingQueue<RenderBuffer>(n_buffers);
+		for (buffer_i = 0; buffer_i < n_buffers; buffer_i++) {
+			free_buffers.add(new RenderBuffer());
+		}
+		outstanding = 0;
+
+		rendered_files = new AtomicLong();
+		rendered_chars = new AtomicLong();
+		render_nanos = new AtomicLong();
+		render_wait_nanos = new AtomicLong();
+		written_files = new AtomicLong();
+		written_bytes = new AtomicLong();
+		write_nanos = new AtomicLong();
+		write_wait_nanos = new AtomicLong();
+
+		writers = new DrainThread[n_writers];
+		for (int writer_i = 0; writer_i < n_writers; writer_i++) {
+			writers[writer_i] = new DrainThread(writer_i);
+			writers[writer_i].start();
+		}
+	}
+
+	/**
+	 * Constructor with the default number of writers and capacity
+	 */
+	public GenerationPipeline()
+	{
+		this(DEFAULT_WRITERS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Take a free buffer to render a file into,
+	 * waiting if the writers have fallen behind.
+	 * @return			an empty buffer
+	 * @throws InterruptedIOException	if interrupted while waiting
+	 */
+	RenderBuffer takeBuffer() throws InterruptedIOException
+	{
+		long wait_start = System.nanoTime();
+		RenderBuffer buffer;
+
+		try {
+			buffer = free_buffers.take();
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException();
+		}
+		buffer.render_start = System.nanoTime();
+		render_wait_nanos.addAndGet(buffer.render_start - wait_start);
+
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer that will not be submitted,
+	 * such as one whose rendering failed,
+	 * so that it can be reused.
+	 * @param buffer	the buffer from takeBuffer()
+	 */
+	private void returnBuffer(RenderBuffer buffer)
+	{
+		buffer.reset();
+		buffer.batch = null;
+		buffer.path = null;
+		free_buffers.add(buffer);
+	}
+
+	/**
+	 * Submit a rendered buffer to be written.
+	 * @param buffer	the buffer from takeBuffer(),
+	 *			containing the contents,
+	 *			and marked with its batch and path
+	 */
+	private void submit(RenderBuffer buffer)
+	{
+		render_nanos.addAndGet(System.nanoTime() - buffer.render_start);
+		rendered_files.incrementAndGet();
+		rendered_chars.addAndGet(buffer.size());
+
+		synchronized (this) {
+			outstanding++;
+		}
+		pending.add(buffer);
+	}
+
+	/**
+	 * Start tracking the files of one project.
+	 * @param sink	the sink into which to write the files
+	 * @return	the new batch
+	 */
+	public Batch startBatch(OutputSink sink)
+	{
+		return new Batch(sink);
+	}
+
+	/**
+	 * Files written to the same sink,
+	 * which can be waited for separately from other batches
+	 */
+	public class Batch
+	{
+		/** the sink into which to write the files */
+		private OutputSink sink;
+		/** number of files submitted, but not yet written */
+		private int batch_outstanding;
+		/**
+		 * the first error raised by a writer since the last
+		 * finish(), or null if there was none
+		 */
+		private IOException error;
+
+		/**
+		 * @param s	sink
+		 */
+		private Batch(OutputSink s)
+		{
+			sink = s;
+			batch_outstanding = 0;
+			error = null;
+		}
+
+		/**
+		 * @return	the sink into which to write the files
+		 */
+		public OutputSink getSink()
+		{
+			return sink;
+		}
+
+		/**
+		 * @return	the pipeline that writes the files
+		 */
+		public GenerationPipeline getPipeline()
+		{
+			return GenerationPipeline.this;
+		}
+
+		/**
+		 * Take a free buffer from the pipeline.
+		 * @return				an empty buffer
+		 * @throws InterruptedIOException	if interrupted
+		 *					while waiting
+		 */
+		RenderBuffer takeBuffer() throws InterruptedIOException
+		{
+			return GenerationPipeline.this.takeBuffer();
+		}
+
+		/**
+		 * Return a buffer that will not be submitted.
+		 * Must be called for every buffer from takeBuffer()
+		 * that is not submitted,
+		 * or the pipeline runs out of buffers.
+		 * @param buffer	the buffer from takeBuffer()
+		 */
+		void returnBuffer(RenderBuffer buffer)
+		{
+			GenerationPipeline.this.returnBuffer(buffer);
+		}
+
+		/**
+		 * Submit a rendered buffer to be written.
+		 * @param path		the path of the file in the sink
+		 * @param buffer	the buffer from takeBuffer(),
+		 *			containing the contents
+		 */
+		void submit(String path, RenderBuffer buffer)
+		{
+			buffer.batch = this;
+			buffer.path = path;
+			synchronized (this) {
+				batch_outstanding++;
+			}
+			GenerationPipeline.this.submit(buffer);
+		}
+
+		/**
+		 * Record that a writer has finished with a file.
+		 * @param failure	the error in writing the file, or null
+		 */
+		private synchronized void completed(IOException failure)
+		{
+			if (failure != null && error == null) {
+				error = failure;
+			}
+			batch_outstanding--;
+			notifyAll();
+		}
+
+		/**
+		 * Wait until all the files submitted in this batch
+		 * have been written.
+		 * @throws IOException	the first error that a writer
+		 *			encountered since the last call,
+		 *			or InterruptedIOException if
+		 *			interrupted while waiting
+		 */
+		public synchronized void finish() throws IOException
+		{
+			IOException to_throw;
+
+			while (batch_outstanding > 0) {
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException();
+				}
+			}
+
+			to_throw = error;
+			error = null;
+			if (to_throw != null) {
+				throw to_throw;
+			}
+		}
+
+		/**
+		 * Wait until the files already submitted in this batch
+		 * have been written, after rendering failed,
+		 * discarding any error in writing them,
+		 * since the rendering error is reported instead.
+		 * If interrupted, stops waiting,
+		 * and leaves the thread interrupted.
+		 */
+		public synchronized void cancel()
+		{
+			while (batch_outstanding > 0) {
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			error = null;
+		}
+	}
+
+	/**
+	 * Wait until the files submitted by all batches have been written.
+	 * Errors are reported by the batches themselves.
+	 * @throws InterruptedIOException	if interrupted while waiting
+	 */
+	public synchronized void finish() throws InterruptedIOException
+	{
+		while (outstanding > 0) {
+			try {
+				wait();
+			} catch (InterruptedException ie) {
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	/**
+	 * Wait for the outstanding files to be written,
+	 * and then stop the writer threads.
+	 * @throws InterruptedIOException	if interrupted while waiting
+	 */
+	public void close() throws InterruptedIOException
+	{
+		try {
+			finish();
+		} finally {
+			for (DrainThread writer : writers) {
+				writer.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Record that a writer has finished with a file.
+	 * @param buffer	the buffer that was written
+	 * @param failure	the error in writing the file, or null
+	 */
+	private void completed(RenderBuffer buffer, IOException failure)
+	{
+		buffer.batch.completed(failure);
+		synchronized (this) {
+			outstanding--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Writer thread, which drains the queue of rendered buffers
+	 */
+	private class DrainThread extends Thread
+	{
+		/** name prefix of the writer threads */
+		private static final String NAME_PREFIX = "makefile-writer-";
+
+		/** encoder from the rendered characters to bytes */
+		private CharsetEncoder encoder;
+		/** reusable buffer for the encoded bytes */
+		private ByteBuffer bytes;
+
+		/**
+		 * @param index	the index of the thread, used in its name
+		 */
+		public DrainThread(int index)
+		{
+			super(NAME_PREFIX + index);
+			setDaemon(true);
+			encoder = Charset.defaultCharset().newEncoder();
+			bytes = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+
+		/**
+		 * Encode the contents of a buffer into "bytes",
+		 * growing it if needed.
+		 * @param buffer	the buffer to encode
+		 * @throws IOException	if the contents could not be encoded
+		 */
+		private void encode(RenderBuffer buffer) throws IOException
+		{
+			CharBuffer chars = buffer.getChars();
+			int needed = (int) (chars.remaining() *
+					    encoder.maxBytesPerChar());
+			CoderResult result;
+
+			if (bytes.capacity() < needed) {
+				bytes = ByteBuffer.allocate(needed);
+			}
+			bytes.clear();
+			encoder.reset();
+			result = encoder.encode(chars, bytes, true);
+			if (!result.isError()) {
+				result = encoder.flush(bytes);
+			}
+			if (result.isError()) {
+				result.throwException();
+			}
+		}
+
+		/**
+		 * Write the contents of a buffer into its sink.
+		 * @param buffer	the buffer to write
+		 * @throws IOException	if writing failed
+		 */
+		private void write(RenderBuffer buffer) throws IOException
+		{
+			encode(buffer);
+			buffer.batch.sink.write(buffer.path, bytes.array(),
+						bytes.position());
+			written_bytes.addAndGet(bytes.position());
+		}
+
+		public void run()
+		{
+			while (true) {
+				long wait_start = System.nanoTime();
+				long write_start;
+				RenderBuffer buffer;
+				IOException failure = null;
+
+				try {
+					buffer = pending.take();
+				} catch (InterruptedException ie) {
+					return;
+				}
+				write_start = System.nanoTime();
+				write_wait_nanos.addAndGet(write_start -
+							   wait_start);
+
+				try {
+					write(buffer);
+					written_files.incrementAndGet();
+				} catch (IOException ioe) {
+					failure = ioe;
+				}
+				write_nanos.addAndGet(System.nanoTime() -
+						      write_start);
+
+				completed(buffer, failure);
+				returnBuffer(buffer);
+			}
+		}
+	}
+
+	/**
+	 * @return	number of files rendered
+	 */
+	public long getRenderedFiles()
+	{
+		return rendered_files.get();
+	}
+
+	/**
+	 * @return	number of characters rendered
+	 */
+	public long getRenderedChars()
+	{
+		return rendered_chars.get();
+	}
+
+	/**
+	 * @return	time spent rendering, in nanoseconds
+	 */
+	public long getRenderNanos()
+	{
+		return render_nanos.get();
+	}
+
+	/**
+	 * Time that the rendering stage spent blocked on the writers.
+	 * If this is large, writing is the bottleneck.
+	 * @return	time spent waiting for free buffers, in nanoseconds
+	 */
+	public long getRenderWaitNanos()
+	{
+		return render_wait_nanos.get();
+	}
+
+	/**
+	 * @return	number of files written
+	 */
+	public long getWrittenFiles()
+	{
+		return written_files.get();
+	}
+
+	/**
+	 * @return	number of bytes written
+	 */
+	public long getWrittenBytes()
+	{
+		return written_bytes.get();
+	}
+
+	/**
+	 * @return	time spent writing by all the writers,
+	 *		in nanoseconds
+	 */
+	public long getWriteNanos()
+	{
+		return write_nanos.get();
+	}
+
+	/**
+	 * Time that the writers spent waiting for rendered files.
+	 * If this is large, rendering is the bottleneck.
+	 * @return	time spent waiting by all the writers,
+	 *		in nanoseconds
+	 */
+	public long getWriteWaitNanos()
+	{
+		return write_wait_nanos.get();
+	}
+
+	/**
+	 * @return	summary of the counters of both stages
+	 */
+	public String toString()
+	{
+		return String.format("render: %d files, %d chars, %d ms, " +
+				     "%d ms blocked; " +
+				     "write: %d files, %d bytes, %d ms, " +
+				     "%d ms idle",
+				     getRenderedFiles(), getRenderedChars(),
+				     getRenderNanos() / 1000000,
+				     getRenderWaitNanos() / 1000000,
+				     getWrittenFiles(), getWrittenBytes(),
+				     getWriteNanos() / 1000000,
+				     getWriteWaitNanos() / 1000000);
+	}
+}
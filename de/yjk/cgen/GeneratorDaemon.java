@@ -0,0 +1,358 @@
+/**
+ * GeneratorDaemon.java
+ * Long-running generator that keeps a project model in memory
+ * and serves requests over a Unix domain socket
+ */
+package de.yjk.cgen;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Keeps a Mainfile model of a project, along with the directory listings
+ * it was populated from, so that repeated requests do not pay for
+ * starting a JVM and rescanning the whole tree.
+ * Before each request, the modification times of the listed directories
+ * are checked, and the model is only rebuilt if one of them changed,
+ * in which case only the changed directories are listed again.
+ *
+ * The protocol is line-based, so any client such as "socat" can be used.
+ * Each request is one line containing a command,
+ * and the response is any number of lines of output,
+ * followed by a status line.
+ * The commands are:
+ * "regenerate", which writes the files that are out of date,
+ * and outputs their paths;
+ * "check", which outputs the paths of the files that are out of date,
+ * without writing them;
+ * "query", which outputs the generated paths and the daemon's counters;
+ * and "stop", which shuts down the daemon.
+ * The status line is "OK" followed by the number of output lines,
+ * "STALE" followed by the number of stale files for a failed check,
+ * or "ERROR" followed by a message.
+ * Subclasses can override createModel() to generate custom projects.
+ */
+public class GeneratorDaemon
+{
+	/* commands */
+	/** command to write the files that are out of date */
+	public static final String REGENERATE_CMD = "regenerate";
+	/** command to list the files that are out of date */
+	public static final String CHECK_CMD = "check";
+	/** command to list the generated files and counters */
+	public static final String QUERY_CMD = "query";
+	/** command to stop the daemon */
+	public static final String STOP_CMD = "stop";
+	/* statuses */
+	/** status of a successful request */
+	public static final String OK_STATUS = "OK";
+	/** status of a check that found out-of-date files */
+	public static final String STALE_STATUS = "STALE";
+	/** status of a failed request */
+	public static final String ERROR_STATUS = "ERROR";
+	/** format of a counter in the output of the query command */
+	private static final String COUNTER_FMT = "%s %d";
+
+	/** the root directory of the project */
+	private File root_dir;
+	/** the path of the socket on which to listen */
+	private Path socket_path;
+	/** the directory listings used to populate the model */
+	private ScanCache scan_cache;
+	/** the pipeline that writes the files */
+	private GenerationPipeline pipeline;
+	/** the current model, or null if it has not been built yet */
+	private Mainfile model;
+	/** should the daemon keep accepting requests? */
+	private boolean running;
+	/** number of requests served */
+	private long requests;
+	/** number of times the model was built */
+	private long model_builds;
+
+	/**
+	 * @param rd	the root directory of the project
+	 * @param sp	the path of the socket on which to listen
+	 */
+	public GeneratorDaemon(File rd, Path sp)
+	{
+		root_dir = rd;
+		socket_path = sp;
+		scan_cache = new ScanCache();
+		pipeline = new GenerationPipeline();
+		model = null;
+		running = true;
+		requests = 0;
+		model_builds = 0;
+	}
+
+	/**
+	 * @return	the root directory of the project
+	 */
+	protected File getRootDir()
+	{
+		return root_dir;
+	}
+
+	/**
+	 * @return	the directory listings, which must be passed
+	 *		to the Mainfile created by createModel()
+	 */
+	protected ScanCache getScanCache()
+	{
+		return scan_cache;
+	}
+
+	/**
+	 * Build a fully populated model of the project.
+	 * By default, it contains all the subdirectories of the root.
+	 * @return		the new model
+	 * @throws IOException	if the project could not be populated
+	 */
+	protected Mainfile createModel() throws IOException
+	{
+		Mainfile new_model = new Mainfile(root_dir, scan_cache);
+
+		new_model.populateFull();
+		return new_model;
+	}
+
+	/**
+	 * Get a model that is up to date with the directory tree,
+	 * rebuilding it only if a directory changed.
+	 * @return		the current model
+	 * @throws IOException	if the project could not be populated
+	 */
+	private Mainfile getModel() throws IOException
+	{
+		if (model == null || scan_cache.hasChanged()) {
+			model = createModel();
+			model_builds++;
+		}
+		return model;
+	}
+
+	/**
+	 * Write one line of the response.
+	 * @param out		the stream to the client
+	 * @param line		the line to write
+	 * @throws IOException	if writing failed
+	 */
+	private static void writeLine(BufferedWriter out,
+				      String line) throws IOException
+	{
+		out.write(line);
+		out.newLine();
+	}
+
+	/**
+	 * Write a list of paths, followed by a status line.
+	 * @param out		the stream to the client
+	 * @param paths		the paths to write
+	 * @param status	the status, which is followed by
+	 *			the number of paths
+	 * @throws IOException	if writing failed
+	 */
+	private static void writePaths(BufferedWriter out, List<String> paths,
+				       String status) throws IOException
+	{
+		for (String path : paths) {
+			writeLine(out, path);
+		}
+		writeLine(out, MakeFormatter.genList(status,
+						     Integer
+						     .toString(paths.size())));
+	}
+
+	/**
+	 * Write one counter of the query command.
+	 * @param out		the stream to the client
+	 * @param name		the name of the counter
+	 * @param value		the value of the counter
+	 * @return		the number of lines written
+	 * @throws IOException	if writing failed
+	 */
+	private static int writeCounter(BufferedWriter out, String name,
+					long value) throws IOException
+	{
+		writeLine(out, String.format(COUNTER_FMT, name, value));
+		return 1;
+	}
+
+	/**
+	 * Write the files that are out of date.
+	 * @param out		the stream to the client
+	 * @throws IOException	if generation or writing failed
+	 */
+	private void regenerate(BufferedWriter out) throws IOException
+	{
+		UpdateSink sink = new UpdateSink(root_dir);
+
+		getModel().generateProject(pipeline, sink);
+		writePaths(out, sink.getStalePaths(), OK_STATUS);
+	}
+
+	/**
+	 * List the files that are out of date.
+	 * @param out		the stream to the client
+	 * @throws IOException	if generation or writing failed
+	 */
+	private void check(BufferedWriter out) throws IOException
+	{
+		CheckSink sink = new CheckSink(root_dir);
+		List<String> stale_paths;
+
+		getModel().generateProject(pipeline, sink);
+		stale_paths = sink.getStalePaths();
+		writePaths(out, stale_paths,
+			   stale_paths.isEmpty() ? OK_STATUS : STALE_STATUS);
+	}
+
+	/**
+	 * List the generated files, and the counters of the daemon.
+	 * @param out		the stream to the client
+	 * @throws IOException	if generation or writing failed
+	 */
+	private void query(BufferedWriter out) throws IOException
+	{
+		MemorySink sink = new MemorySink();
+		int n_lines = 0;
+
+		getModel().generateProject(pipeline, sink);
+		for (String path : sink.getFiles().keySet()) {
+			writeLine(out, path);
+			n_lines++;
+		}
+		n_lines += writeCounter(out, "requests", requests);
+		n_lines += writeCounter(out, "model-builds", model_builds);
+		n_lines += writeCounter(out, "directories", scan_cache.size());
+		n_lines += writeCounter(out, "scans", scan_cache.getScans());
+		n_lines += writeCounter(out, "scan-hits", scan_cache.getHits());
+		writeLine(out, pipeline.toString());
+		n_lines++;
+		writeLine(out, MakeFormatter.genList(OK_STATUS,
+						     Integer.toString(n_lines)));
+	}
+
+	/**
+	 * Serve one request.
+	 * @param command	the request line
+	 * @param out		the stream to the client
+	 * @throws IOException	if writing to the client failed
+	 */
+	private void serveRequest(String command,
+				  BufferedWriter out) throws IOException
+	{
+		requests++;
+		try {
+			if (REGENERATE_CMD.equals(command)) {
+				regenerate(out);
+			} else if (CHECK_CMD.equals(command)) {
+				check(out);
+			} else if (QUERY_CMD.equals(command)) {
+				query(out);
+			} else if (STOP_CMD.equals(command)) {
+				running = false;
+				writeLine(out, MakeFormatter
+					       .genList(OK_STATUS, "0"));
+			} else {
+				writeLine(out, MakeFormatter
+					       .genList(ERROR_STATUS,
+							"unknown command",
+							command));
+			}
+		} catch (IOException ioe) {
+			/* the next request rebuilds the model */
+			model = null;
+			writeLine(out, MakeFormatter.genList(ERROR_STATUS,
+							     ioe.toString()));
+		}
+		out.flush();
+	}
+
+	/**
+	 * Serve the requests of one client, until it disconnects.
+	 * @param client	the connection to the client
+	 * @throws IOException	if communicating with the client failed
+	 */
+	private void serveClient(SocketChannel client) throws IOException
+	{
+		InputStream in_stream = Channels.newInputStream(client);
+		OutputStream out_stream = Channels.newOutputStream(client);
+		BufferedReader in;
+		BufferedWriter out;
+		String command;
+
+		in = new BufferedReader(new InputStreamReader(in_stream));
+		out = new BufferedWriter(new OutputStreamWriter(out_stream));
+		while (running && (command = in.readLine()) != null) {
+			command = command.trim();
+			if (command.length() > 0) {
+				serveRequest(command, out);
+			}
+		}
+	}
+
+	/**
+	 * Listen on the socket, and serve clients one at a time,
+	 * until a stop command is received.
+	 * @throws IOException	if the socket could not be created
+	 */
+	public void serve() throws IOException
+	{
+		ServerSocketChannel
+		server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+
+		Files.deleteIfExists(socket_path);
+		try {
+			server.bind(UnixDomainSocketAddress.of(socket_path));
+			while (running) {
+				SocketChannel client = server.accept();
+
+				try {
+					serveClient(client);
+				} catch (IOException ioe) {
+					/* only this client is affected */
+				} finally {
+					client.close();
+				}
+			}
+		} finally {
+			server.close();
+			Files.deleteIfExists(socket_path);
+			pipeline.close();
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		if (args.length < 2) {
+			System.out.println("Please give the project " +
+					   "directory and socket path.");
+			return;
+		}
+
+		try {
+			new GeneratorDaemon(new File(args[0]),
+					    Paths.get(args[1])).serve();
+		} catch (IOException ioe) {
+			System.out.println("Daemon failed: " + ioe);
+			ioe.printStackTrace();
+		}
+	}
+}
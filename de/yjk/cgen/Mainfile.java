@@ -7,6 +7,15 @@ package de.yjk.cgen;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Specific data for Makefile of root directory,
@@ -25,6 +34,116 @@ public class Mainfile extends Makefile
 	 * that needs to be in the C compile flags?
 	 */
 	private boolean has_include;
+	/** directory listings used to populate the project */
+	private ScanCache scan_cache;
+	/**
+	 * the workspace sharing renderings of subdirectory trees,
+	 * or null if the project is generated by itself
+	 */
+	private Workspace workspace;
+	/**
+	 * number of jobs to run at the same time
+	 * if make is run without "-j",
+	 * or 0 to leave the default to make.
+	 * 0 by default
+	 */
+	private int default_jobs;
+	/**
+	 * load average above which make should not start new jobs
+	 * if run without "-j",
+	 * or 0 for no limit.
+	 * 0 by default
+	 */
+	private int max_load;
+	/** sizes of the pools of targets, keyed by name */
+	private Map<String, Integer> pools;
+	/**
+	 * Generate the fast dialect,
+	 * without make's built-in rules and variables,
+	 * and with variables that are expanded only once?
+	 * false by default
+	 */
+	private boolean fast_dialect;
+	/**
+	 * directory under which to mirror the directory tree
+	 * with the generated objects, archives and binaries,
+	 * in a subdirectory for each configuration,
+	 * either absolute or relative to the root directory,
+	 * or null to generate them next to the sources.
+	 * null by default
+	 */
+	private String output_root;
+	/** build profiles, keyed by name, in the order they were added */
+	private Map<String, Profile> profiles;
+	/**
+	 * the profile built if PROFILE is not set,
+	 * or null for the first one
+	 */
+	private String default_profile;
+	/**
+	 * the command run by the profile-guided optimization training rule,
+	 * or null if there is no training.
+	 * null by default
+	 */
+	private String pgo_training;
+	/**
+	 * the precompiled header of the header in the include directory
+	 * that the objects include first, or null if there is none.
+	 * null by default
+	 */
+	private PrecompiledHeaderTarget precompiled_header;
+	/**
+	 * the position-independent precompiled header of the same header,
+	 * for the objects of shared libraries, or null if there is none.
+	 * null by default
+	 */
+	private PrecompiledHeaderTarget pic_precompiled_header;
+	/** the name of that header, relative to the include directory */
+	private String precompiled_header_name;
+	/**
+	 * the linker used by the compiler driver, such as "gold" or "lld",
+	 * or null for its default one.
+	 * null by default
+	 */
+	private String linker;
+	/**
+	 * Put the debug information in separate files next to the objects,
+	 * so that links do not copy it?
+	 * false by default
+	 */
+	private boolean split_debug_info;
+	/**
+	 * the command prefixed to the commands compiling objects,
+	 * such as "ccache", or null for none.
+	 * null by default
+	 */
+	private String launcher;
+	/**
+	 * the directory of the object cache, or null if it is not used.
+	 * null by default
+	 */
+	private String object_cache;
+	/** the maximum size of the object cache, in bytes */
+	private long object_cache_bytes;
+	/** hard-link objects from the object cache, instead of copying them? */
+	private boolean object_cache_hard_link;
+	/**
+	 * the URL of the remote object cache, or null if there is none.
+	 * null by default
+	 */
+	private String remote_cache;
+	/** the timeout of the remote object cache, in milliseconds */
+	private int remote_cache_timeout;
+	/**
+	 * the compile workers, as "host:port" separated by spaces,
+	 * or null if compiles are not distributed.
+	 * null by default
+	 */
+	private String compile_workers;
+	/** the number of jobs run by each compile worker */
+	private int compile_worker_jobs;
+	/** the timeout of connecting to a compile worker, in milliseconds */
+	private int compile_workers_timeout;
 
 	/** name of the common resource file, relative to the root directory */
 	public static final String COMMON_NAME = "common.mk";
@@ -35,8 +154,11 @@ public class Mainfile extends Makefile
 	/* shell commands */
 	/** value of archive creator */
 	private static final String AR_VAL = "ar";
-	/** command to remove file when cleaning */
-	private static final String RM_VAL = "rm";
+	/**
+	 * command to remove file when cleaning,
+	 * which is the same as make's built-in value
+	 */
+	private static final String RM_VAL = "rm -f";
 	/** C compiler command */
 	private static final String CC_VAL = "gcc";
 	/** C++ compiler command */
@@ -54,6 +176,351 @@ public class Mainfile extends Makefile
 	 */
 	private static final String
 	STATIC_CPPFLAGS_VAL = "-g -Wall -Wextra -Werror";
+	/* parallelism */
+	/** variable for the default number of jobs */
+	public static final String JOBS_VAR = "JOBS";
+	/** variable for the default maximum load average */
+	public static final String MAX_LOAD_VAR = "MAX_LOAD";
+	/** variable containing the flags of make */
+	private static final String MAKEFLAGS_VAR = "MAKEFLAGS";
+	/** make flag for the number of jobs */
+	private static final String JOBS_FLAG = "-j";
+	/** make flag for the maximum load average */
+	private static final String LOAD_FLAG = "-l";
+	/**
+	 * format of the default number of jobs with compile workers,
+	 * from the processors of the machine running make,
+	 * or the given number of local jobs if it is larger,
+	 * and the jobs of the workers
+	 */
+	private static final String
+	WORKER_JOBS_FMT = "$(shell n=$$(nproc 2>/dev/null || echo 1); " +
+			  "echo $$(((n > %1$d ? n : %1$d) + " +
+			  "$(words $(COMPILE_WORKERS)) * " +
+			  "$(COMPILE_WORKER_JOBS))))";
+	/**
+	 * start of the conditional that only sets the default parallelism
+	 * in the top-level make,
+	 * so that sub-makes share its jobserver
+	 * instead of starting their own jobs.
+	 * "-j" on the command line still takes precedence.
+	 */
+	private static final String
+	TOP_LEVEL_COND = "ifeq ($(MAKELEVEL),0)";
+	/** end of a conditional */
+	private static final String END_COND = "endif";
+	/* fast dialect */
+	/** make flags disabling the built-in rules and variables */
+	private static final String NO_BUILTINS_FLAGS = "-rR";
+	/** declaration of the suffixes for suffix rules, which is empty */
+	private static final String SUFFIXES_DECL = ".SUFFIXES:";
+	/** pattern matching any stem in pattern rules */
+	private static final String PATTERN_STEM = "%";
+	/** flag to only compile, without linking */
+	private static final String COMPILE_ONLY_FLAG = "-c";
+	/** flag before the output file */
+	private static final String OUTPUT_FLAG = "-o";
+	/** automatic variables for the output and the first dependency */
+	private static final String OUT_FIRST_IN_VARS = "$@ $<";
+	/* build profiles */
+	/** variable for the name of the profile being built */
+	public static final String PROFILE_VAR = "PROFILE";
+	/**
+	 * start of the names of the variables for the flags of profiles,
+	 * which are only used for compiling
+	 */
+	private static final String
+	PROFILE_CPPFLAGS_PREFIX = "PROFILE_CPPFLAGS_";
+	/** start of the names of the variables for link flags of profiles */
+	private static final String
+	PROFILE_LDFLAGS_PREFIX = "PROFILE_LDFLAGS_";
+	/** start of the names of the variables for the archivers of profiles */
+	private static final String PROFILE_AR_PREFIX = "PROFILE_AR_";
+	/** format of the start of the conditional for an unknown profile */
+	private static final String
+	UNKNOWN_PROFILE_COND_FMT = "ifeq ($(filter $(PROFILE),%s),)";
+	/** format of the error for an unknown profile */
+	private static final String
+	UNKNOWN_PROFILE_ERROR_FMT = "$(error Unknown PROFILE $(PROFILE), " +
+				    "expected one of: %s)";
+	/** format of the value of the archiver, depending on the profile */
+	private static final String
+	PROFILE_AR_FMT = "$(or $(PROFILE_AR_$(PROFILE)),%s)";
+	/** variable for the machine that the native profile tunes for */
+	public static final String MARCH_VAR = "MARCH";
+	/** default machine that the native profile tunes for */
+	private static final String MARCH_VAL = "native";
+	/* default profiles */
+	/** name of the profile for debugging */
+	public static final String DEBUG_PROFILE = "debug";
+	/** name of the optimized profile */
+	public static final String RELEASE_PROFILE = "release";
+	/** name of the optimized profile with link-time optimization */
+	public static final String LTO_PROFILE = "lto";
+	/** name of the optimized profile tuned for one machine */
+	public static final String NATIVE_PROFILE = "native";
+	/** flags of the profile for debugging */
+	private static final String DEBUG_CPPFLAGS_VAL = "-O0";
+	/** flags of the optimized profiles */
+	private static final String RELEASE_CPPFLAGS_VAL = "-O2 -DNDEBUG";
+	/** flags for link-time optimization */
+	private static final String LTO_FLAG = "-flto";
+	/** archiver that can index objects with link-time optimization */
+	private static final String LTO_AR_VAL = "gcc-ar";
+	/** flag tuning for the machine set in MARCH */
+	private static final String MARCH_FLAG = "-march=$(MARCH)";
+	/* profile-guided optimization */
+	/** name of the profile building instrumented code */
+	public static final String PGO_GENERATE_PROFILE = "pgo-generate";
+	/** name of the profile building code optimized for the training */
+	public static final String PGO_USE_PROFILE = "pgo-use";
+	/** the rule that trains and rebuilds the optimized code */
+	public static final String PGO_TRAIN_RULE = "pgo-train";
+	/** variable for the directory containing the profile data */
+	public static final String PGO_DIR_VAR = "PGO_DIR";
+	/** default directory of the profile data, under the root directory */
+	private static final String PGO_DIR_NAME = "pgo";
+	/** variable for the training command */
+	public static final String PGO_TRAIN_VAR = "PGO_TRAIN";
+	/** variable that keeps the profile data when cleaning, if set */
+	public static final String PGO_KEEP_VAR = "PGO_KEEP";
+	/**
+	 * configuration of both profile-guided optimization builds,
+	 * so that they use the same object paths,
+	 * after which the profile data is named
+	 */
+	private static final String PGO_CONFIG_VAL = "pgo";
+	/** flag building instrumented code */
+	private static final String
+	PGO_GENERATE_FLAG = "-fprofile-generate=$(PGO_DIR)";
+	/**
+	 * flags building code optimized for the training,
+	 * which do not fail for code not run in the training
+	 */
+	private static final String
+	PGO_USE_FLAGS = "-fprofile-use=$(PGO_DIR) -Wno-missing-profile";
+	/** format of removing the profile data, unless it is kept */
+	private static final String
+	PGO_CLEAN_FMT = "$(if $(PGO_KEEP),,%s)";
+	/** format of assigning a variable on the command line */
+	private static final String CMD_VAR_FMT = "%s=%s";
+	/* out-of-tree builds */
+	/** variable for the name of the configuration being built */
+	public static final String CONFIG_VAR = "CONFIG";
+	/** default name of the configuration being built */
+	private static final String CONFIG_VAL = "default";
+	/**
+	 * variable for the directory under which to mirror
+	 * the directory tree, for the configuration being built
+	 */
+	public static final String BUILD_ROOT_VAR = "BUILD_ROOT";
+	/* pools */
+	/** variable for the absolute path of the root directory */
+	public static final String ROOT_DIR_VAR = "ROOT_DIR";
+	/**
+	 * value of the root directory,
+	 * found from the path of the common resources file,
+	 * which is the last Makefile read at that point
+	 */
+	private static final String
+	ROOT_DIR_VAL = "$(abspath $(dir $(lastword $(MAKEFILE_LIST))))";
+	/** variable for the directory containing the locks of the pools */
+	public static final String POOL_DIR_VAR = "POOL_DIR";
+	/** start of the names of the variables for the sizes of pools */
+	public static final String POOL_VAR_PREFIX = "POOL_";
+	/** start of the names of the lock files of pools */
+	private static final String POOL_LOCK_PREFIX = ".pool-";
+	/**
+	 * variable for the command that runs a command in a pool,
+	 * given the start of the pool's lock files, and its size.
+	 * The command tries to lock each slot of the pool with "flock",
+	 * and if all of them are busy,
+	 * it waits for one of them chosen by its process ID.
+	 * The command keeps the lock until it exits.
+	 */
+	public static final String RUN_IN_POOL_VAR = "RUN_IN_POOL";
+	/** start of the command that runs a command in a pool */
+	private static final String
+	RUN_IN_POOL_START = "sh -c '" +
+			    "lock=$$1; n=$$2; shift 2; ";
+	/**
+	 * part of the command that runs a command in a pool
+	 * creating the directory of the locks,
+	 * which is not the root directory, and may not exist yet
+	 */
+	private static final String
+	POOL_MKDIR_CMD = "mkdir -p \"$${lock%/*}\"; ";
+	/** rest of the command that runs a command in a pool */
+	private static final String
+	RUN_IN_POOL_END = "i=0; " +
+			  "while [ $$i -lt $$n ]; do " +
+			  "exec 9>\"$$lock.$$i\"; " +
+			  "flock -n 9 && exec \"$$@\"; " +
+			  "i=$$((i + 1)); " +
+			  "done; " +
+			  "exec 9>\"$$lock.$$(($$$$ % n))\"; " +
+			  "flock 9 && exec \"$$@\"' pool";
+	/* precompiled headers */
+	/** variable for the directory containing the precompiled header */
+	public static final String PCH_DIR_VAR = "PCH_DIR";
+	/** variable for the path of the precompiled header */
+	public static final String PCH_VAR = "PCH";
+	/** variable for the flags using the precompiled header */
+	public static final String PCH_FLAGS_VAR = "PCH_FLAGS";
+	/**
+	 * variable for the path of the position-independent
+	 * precompiled header
+	 */
+	public static final String PIC_PCH_VAR = "PIC_PCH";
+	/**
+	 * variable for the flags using the position-independent
+	 * precompiled header
+	 */
+	public static final String PIC_PCH_FLAGS_VAR = "PIC_PCH_FLAGS";
+	/**
+	 * directory of the position-independent precompiled header,
+	 * in the directory of the other one,
+	 * since the compiler only looks for the precompiled header
+	 * next to the included header, and rejects one compiled
+	 * with different position-independence
+	 */
+	private static final String PIC_PCH_DIR = "pic";
+	/** extension of precompiled headers */
+	private static final String PCH_EXT = ".gch";
+	/** extension of the dependency files of precompiled headers */
+	public static final String DEPENDENCY_EXT = ".d";
+	/**
+	 * flag warning about a precompiled header that cannot be used,
+	 * which is an error along with the static C preprocessor flags
+	 */
+	private static final String INVALID_PCH_FLAG = "-Winvalid-pch";
+	/**
+	 * flag including a header before the source,
+	 * which uses the precompiled header next to it, if there is one
+	 */
+	private static final String FORCE_INCLUDE_FLAG = "-include";
+	/* linking */
+	/** variable for the linker used by the compiler driver */
+	public static final String LINKER_VAR = "LINKER";
+	/** start of the names of the programs of linkers */
+	private static final String LINKER_PREFIX = "ld.";
+	/** flags selecting the linker, if it is set */
+	private static final String
+	FUSE_LD_FLAGS = "$(if $(LINKER),-fuse-ld=$(LINKER))";
+	/**
+	 * variable containing a comma,
+	 * which cannot be written directly in function arguments
+	 */
+	private static final String COMMA_VAR = "comma";
+	/** flag putting the debug information in separate files */
+	private static final String SPLIT_DWARF_FLAG = "-gsplit-dwarf";
+	/**
+	 * flags that have the linker index the debug information,
+	 * for the linkers that can
+	 */
+	private static final String
+	GDB_INDEX_FLAGS = "$(if $(filter gold lld mold,$(LINKER))," +
+			  "-Wl$(comma)--gdb-index)";
+	/** extension of the files with the split debug information */
+	public static final String SPLIT_DWARF_EXT = ".dwo";
+	/* compiler launchers */
+	/** variable for the command prefixed to compile commands */
+	public static final String LAUNCHER_VAR = "LAUNCHER";
+	/**
+	 * value of the launcher that is empty
+	 * if the program of the launcher is not installed
+	 */
+	private static final String
+	INSTALLED_LAUNCHER_VAL = "$(if $(shell command -v " +
+				 "$(firstword $(LAUNCHER))),$(LAUNCHER))";
+	/**
+	 * variable for the directory under which ccache
+	 * rewrites absolute paths into relative ones,
+	 * so that copies of the project share cached objects
+	 */
+	private static final String CCACHE_BASEDIR_VAR = "CCACHE_BASEDIR";
+	/**
+	 * flag replacing the root directory in the debug information
+	 * with a relative path,
+	 * so that the objects do not depend on where the project is
+	 */
+	private static final String
+	DEBUG_PREFIX_MAP_FLAG = "-fdebug-prefix-map=$(ROOT_DIR)=.";
+	/* launchers of this library */
+	/**
+	 * variable for the Java launcher running the launchers
+	 * of this library
+	 */
+	private static final String MAKE_UTILS_JAVA_VAR = "MAKE_UTILS_JAVA";
+	/** default Java launcher running the launchers of this library */
+	private static final String MAKE_UTILS_JAVA_VAL = "java";
+	/** variable for the class path containing this library */
+	private static final String MAKE_UTILS_VAR = "MAKE_UTILS";
+	/**
+	 * start of the launchers of this library,
+	 * which are disabled if MAKE_UTILS is empty
+	 */
+	private static final String
+	LIBRARY_LAUNCHER_START = "$(if $(MAKE_UTILS),";
+	/** end of the launchers of this library */
+	private static final String LIBRARY_LAUNCHER_END = ")";
+	/** start of the conditional for a missing library */
+	private static final String
+	MISSING_MAKE_UTILS_COND = "ifeq ($(MAKE_UTILS),)";
+	/** warning that the launchers of this library are disabled */
+	private static final String
+	MISSING_MAKE_UTILS_WARNING = "$(warning MAKE_UTILS is not set, " +
+				     "so the object cache and the compile " +
+				     "workers are not used)";
+	/** flag before the class path of the Java launcher */
+	private static final String CLASS_PATH_FLAG = "-cp";
+	/* object cache */
+	/** variable for the directory of the object cache */
+	private static final String OBJECT_CACHE_DIR_VAR = "OBJECT_CACHE_DIR";
+	/** variable for the maximum size of the object cache, in bytes */
+	private static final String OBJECT_CACHE_SIZE_VAR = "OBJECT_CACHE_SIZE";
+	/** variable for the URL of the remote object cache */
+	private static final String OBJECT_CACHE_URL_VAR = "OBJECT_CACHE_URL";
+	/** variable for the timeout of the remote object cache */
+	private static final String
+	OBJECT_CACHE_TIMEOUT_VAR = "OBJECT_CACHE_TIMEOUT";
+	/** options of the object cache using the remote cache, if any */
+	private static final String
+	REMOTE_CACHE_OPTS = "$(if $(OBJECT_CACHE_URL)," +
+			    ObjectCache.REMOTE_OPT + " $(OBJECT_CACHE_URL) " +
+			    ObjectCache.TIMEOUT_OPT +
+			    " $(OBJECT_CACHE_TIMEOUT))";
+	/* compile workers */
+	/** variable for the compile workers */
+	private static final String COMPILE_WORKERS_VAR = "COMPILE_WORKERS";
+	/** variable for the number of jobs run by each compile worker */
+	private static final String
+	COMPILE_WORKER_JOBS_VAR = "COMPILE_WORKER_JOBS";
+	/** variable for the timeout of connecting to a compile worker */
+	private static final String
+	COMPILE_WORKERS_TIMEOUT_VAR = "COMPILE_WORKERS_TIMEOUT";
+	/**
+	 * launcher sending the compiles to the compile workers,
+	 * if there are any
+	 */
+	private static final String
+	COMPILE_CLIENT_VAL = "$(if $(COMPILE_WORKERS)," +
+			     "$(MAKE_UTILS_JAVA) -cp $(MAKE_UTILS) " +
+			     CompileClient.class.getName() +
+			     " '$(COMPILE_WORKERS)'" +
+			     " $(COMPILE_WORKERS_TIMEOUT))";
+	/**
+	 * options of the object cache compiling the objects that it is
+	 * missing on the compile workers, if there are any
+	 */
+	private static final String
+	CACHE_WORKERS_OPTS = "$(if $(COMPILE_WORKERS)," +
+			     ObjectCache.WORKERS_OPT +
+			     " '$(COMPILE_WORKERS)' " +
+			     ObjectCache.WORKERS_TIMEOUT_OPT +
+			     " $(COMPILE_WORKERS_TIMEOUT))";
+	/** directive passing a variable to the environment of commands */
+	private static final String EXPORT_CMD = "export";
 	/** the characters in the relative path from directory to parent */
 	private static final char[]
 	TOWARDS_PARENT = {'.', '.', File.separatorChar};
@@ -67,10 +534,50 @@ public class Mainfile extends Makefile
 	 */
 	public Mainfile(File bd) throws NotDirectoryException,
 					IOException
+	{
+		this(bd, new ScanCache());
+	}
+
+	/**
+	 * Constructor that reuses directory listings from earlier scans,
+	 * for subclasses that populate the project in their constructors
+	 * @param bd				build_dir to pass to
+	 *					the superconstructor
+	 * @param sc				scan_cache
+	 * @throws NotDirectoryException	if bd is not a directory
+	 * @throws IOException			if bd could not be
+	 *					canonicalized
+	 */
+	public Mainfile(File bd, ScanCache sc) throws NotDirectoryException,
+						      IOException
 	{
 		/* bd is given; This object is its own root */
 		super(bd, null);
 		setRoot(this);
+		scan_cache = sc;
+		workspace = null;
+		default_jobs = 0;
+		max_load = 0;
+		pools = new TreeMap<String, Integer>();
+		fast_dialect = false;
+		output_root = null;
+		profiles = new LinkedHashMap<String, Profile>();
+		default_profile = null;
+		pgo_training = null;
+		precompiled_header = null;
+		pic_precompiled_header = null;
+		precompiled_header_name = null;
+		linker = null;
+		split_debug_info = false;
+		launcher = null;
+		object_cache = null;
+		object_cache_bytes = 0;
+		object_cache_hard_link = false;
+		remote_cache = null;
+		remote_cache_timeout = ObjectCache.DEFAULT_TIMEOUT_MS;
+		compile_workers = null;
+		compile_worker_jobs = 0;
+		compile_workers_timeout = 0;
 
 		/* check existence of include directory */
 		File include_file = new File(bd, INCLUDE_NAME);
@@ -133,6 +640,51 @@ public class Mainfile extends Makefile
 		}
 	}
 
+	/**
+	 * Find the path from the root directory to a descendant directory,
+	 * in the form used by OutputSink, ending in a separator.
+	 * @param descendant			must be descendant directory
+	 *					contained in the root directory
+	 * @return				path from root to descendant,
+	 *					which is empty for the root
+	 * @throws NotDescendantException	if purported descendant
+	 *					is not actually contained
+	 *					in the file subtree rooted
+	 *					in this directory
+	 * @throws IOException			if finding paths failed
+	 */
+	protected String
+	findSubPath(Makefile descendant) throws NotDescendantException,
+						IOException
+	{
+		String root_path = getBuildPath();
+		String descendant_path = descendant.getBuildPath();
+
+		if (descendant_path.startsWith(root_path)) {
+			String
+			path_to_descend = descendant_path
+					  .substring(root_path.length());
+			String[]
+			descent_segments = path_to_descend
+					   .split(File.separator);
+			StringBuilder
+			path_builder = new StringBuilder(path_to_descend
+							 .length() + 1);
+
+			for (String descent_segment : descent_segments) {
+				if (descent_segment.length() > 0) {
+					path_builder.append(descent_segment);
+					path_builder.append(OutputSink
+							    .PATH_SEPARATOR);
+				}
+			}
+
+			return path_builder.toString();
+		} else {
+			throw new NotDescendantException(descendant_path);
+		}
+	}
+
 	/**
 	 * error thrown by findRelPath if given directory is not
 	 * contained in path subtree of this root directory
@@ -163,29 +715,1358 @@ public class Mainfile extends Makefile
 	}
 
 	/**
-	 * Generate the Makefiles for the whole project,
-	 * as well as the common resources file
-	 * @throws IOException	if there was an error in writing the Makefiles
-	 *			or the resources
+	 * Set "linker" field.
+	 * It can be overridden with LINKER,
+	 * which can also be set to empty to use the default linker.
+	 * @param l	the new value for "linker"
 	 */
-	public void generateProject() throws IOException
+	public void setLinker(String l)
 	{
-		/* generate common directory file */
-		File common_file = new File(getBuildDir(), COMMON_NAME);
-		MakeFormatter output = new MakeFormatter(common_file);
+		linker = l;
+	}
 
-		/* set shell command variables */
-		output.assignVar(Makefile.CC_VAR, CC_VAL);
-		output.assignVar(Makefile.CPP_VAR, CPP_VAL);
-		output.assignVar(Makefile.AR_VAR, AR_VAL);
-		output.assignVar(Makefile.STATIC_CPPFLAGS_VAR,
-				 STATIC_CPPFLAGS_VAL);
-		output.assignVar(Makefile.AR_FLAGS_VAR, AR_FLAGS_VAL);
-		output.assignVar(Makefile.RM_FLAGS_VAR, RM_FLAGS_VAL);
+	/**
+	 * Select the first linker among the given ones
+	 * that is installed on this machine,
+	 * ie. whose program, such as "ld.gold", is in the PATH.
+	 * @param candidates	the names of the linkers, such as "lld",
+	 *			in order of preference
+	 * @return		the selected linker,
+	 *			or null to keep the default linker
+	 *			if none of them is installed
+	 */
+	public String detectLinker(String ... candidates)
+	{
+		String path = System.getenv("PATH");
 
-		output.close();
+		if (path == null) {
+			return null;
+		}
+		for (String candidate : candidates) {
+			for (String dir : path.split(File.pathSeparator)) {
+				File program = new File(dir, LINKER_PREFIX +
+							     candidate);
+
+				if (program.canExecute()) {
+					linker = candidate;
+					return linker;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check if the debug information is put in separate files
+	 * @return split_debug_info
+	 */
+	public boolean hasSplitDebugInfo()
+	{
+		return split_debug_info;
+	}
+
+	/**
+	 * Set "split_debug_info" field.
+	 * The debug information of each object is then put in a file
+	 * with SPLIT_DWARF_EXT next to it,
+	 * and indexed by the linker, if it is gold, lld or mold,
+	 * so that links only read and write a fraction of it.
+	 * @param sdi	the new value for "split_debug_info"
+	 */
+	public void setSplitDebugInfo(boolean sdi)
+	{
+		split_debug_info = sdi;
+	}
+
+	/**
+	 * Write the linker and the split debug information flags
+	 * into the common resources file,
+	 * if they were set.
+	 * @param output	the common resources file
+	 * @throws IOException	if writing failed
+	 */
+	private void writeLinker(MakeFormatter output) throws IOException
+	{
+		if (linker != null) {
+			output.assignDefaultVar(LINKER_VAR, linker);
+			output.appendVar(Makefile.LDFLAGS_VAR, FUSE_LD_FLAGS);
+		}
+		if (split_debug_info) {
+			output.assignSimpleVar(COMMA_VAR, ",");
+			output.appendVar(Makefile.STATIC_CPPFLAGS_VAR,
+					 SPLIT_DWARF_FLAG);
+			output.appendVar(Makefile.LDFLAGS_VAR, GDB_INDEX_FLAGS);
+		}
+	}
+
+	/**
+	 * Set "launcher" field.
+	 * The launcher, such as "ccache", then runs the commands
+	 * compiling objects, but not the links.
+	 * If its program is not installed, the commands run directly.
+	 * The root directory is removed from the paths in the objects,
+	 * so that copies of the project in other directories
+	 * can share cached objects.
+	 * It can be overridden with LAUNCHER,
+	 * which can also be set to empty to disable it.
+	 * @param l	the new value for "launcher"
+	 */
+	public void setLauncher(String l)
+	{
+		launcher = l;
+	}
+
+	/**
+	 * Use the object cache of this library as the launcher,
+	 * so that objects compiled before from the same sources and flags,
+	 * such as after switching branches, are reused instead of compiled.
+	 * The cache runs from the jar or directory containing this class,
+	 * relative to the root directory if it is inside it,
+	 * or else from the one given in MAKE_UTILS,
+	 * without which the objects are compiled directly,
+	 * and the directory and maximum size can be overridden with
+	 * OBJECT_CACHE_DIR and OBJECT_CACHE_SIZE.
+	 * A remote cache can be used by setting OBJECT_CACHE_URL.
+	 * With compile workers, the objects missing from the cache
+	 * are compiled on the workers.
+	 * @param dir		the directory of the cache,
+	 *			relative to the root directory if it is not
+	 *			absolute
+	 * @param max_bytes	the maximum size of the cache, in bytes
+	 * @param hard_link	hard-link objects from the cache,
+	 *			instead of copying them?
+	 *			The objects must then not be modified in place.
+	 * Must be called before populating.
+	 */
+	public void setObjectCache(String dir, long max_bytes,
+				   boolean hard_link)
+	{
+		object_cache = dir;
+		object_cache_bytes = max_bytes;
+		object_cache_hard_link = hard_link;
+		setLibraryLauncher();
+	}
+
+	/**
+	 * Generate the launcher of the object cache,
+	 * which compiles the objects that it is missing
+	 * on the compile workers, if there are any
+	 * @return	the launcher of the object cache
+	 */
+	private String genObjectCacheLauncher()
+	{
+		return MakeFormatter
+		       .genList(MakeFormatter.genUseVar(MAKE_UTILS_JAVA_VAR),
+				CLASS_PATH_FLAG,
+				MakeFormatter.genUseVar(MAKE_UTILS_VAR),
+				ObjectCache.class.getName(),
+				MakeFormatter.genUseVar(OBJECT_CACHE_DIR_VAR),
+				MakeFormatter.genUseVar(OBJECT_CACHE_SIZE_VAR),
+				REMOTE_CACHE_OPTS) +
+		       (compile_workers == null ? "" :
+						  MakeFormatter.LIST_DELIM +
+						  CACHE_WORKERS_OPTS) +
+		       (object_cache_hard_link ? MakeFormatter.LIST_DELIM +
+						 ObjectCache.HARD_LINK_OPT :
+						 "");
+	}
+
+	/**
+	 * Set the launcher to the object cache,
+	 * or else to the client of the compile workers,
+	 * either of which is only used if MAKE_UTILS is set
+	 */
+	private void setLibraryLauncher()
+	{
+		setLauncher(LIBRARY_LAUNCHER_START +
+			    (object_cache == null ? COMPILE_CLIENT_VAL :
+						    genObjectCacheLauncher()) +
+			    LIBRARY_LAUNCHER_END);
+	}
+
+	/**
+	 * Share the object cache with other machines
+	 * through a remote cache, such as a CacheServer,
+	 * which is used when an object is not in the local cache,
+	 * and which is sent the objects compiled locally.
+	 * If the remote cache does not respond within the timeout,
+	 * the objects are compiled locally.
+	 * The URL and timeout can be overridden with
+	 * OBJECT_CACHE_URL and OBJECT_CACHE_TIMEOUT,
+	 * and setting OBJECT_CACHE_URL to empty disables the remote cache.
+	 * If the remote cache requires a token to store objects,
+	 * it is taken from OBJECT_CACHE_TOKEN in the environment,
+	 * so that it is not written into the generated files.
+	 * Requires the object cache.
+	 * @param url		the URL of the remote cache,
+	 *			such as "http://host:port"
+	 * @param timeout_ms	the timeout of each request, in milliseconds
+	 */
+	public void setRemoteCache(String url, int timeout_ms)
+	{
+		remote_cache = url;
+		remote_cache_timeout = timeout_ms;
+	}
+
+	/**
+	 * Find a directory used by the builds
+	 * @param dir	the directory,
+	 *		relative to the root directory if it is not absolute
+	 * @return	the absolute, normalized path of the directory
+	 */
+	private Path findDir(String dir)
+	{
+		File file = new File(dir);
+
+		if (!file.isAbsolute()) {
+			file = new File(getBuildDir(), dir);
+		}
+		return file.getAbsoluteFile().toPath().normalize();
+	}
+
+	/**
+	 * Check if a directory is written by the builds,
+	 * instead of containing sources,
+	 * so that it is not populated when generating again after building:
+	 * the directory of the object cache, the output root,
+	 * or the directory of the profile data
+	 * @param dir	the directory
+	 * @return	true iff dir is written by the builds
+	 */
+	boolean isOutputDir(File dir)
+	{
+		Path path = dir.getAbsoluteFile().toPath().normalize();
+
+		return (object_cache != null &&
+			findDir(object_cache).equals(path)) ||
+		       (output_root != null &&
+			findDir(output_root).equals(path)) ||
+		       (pgo_training != null &&
+			findDir(PGO_DIR_NAME).equals(path));
+	}
+
+	/**
+	 * Distribute the compiles over CompileWorkers on other machines,
+	 * with this library as the launcher.
+	 * Each source is preprocessed locally, and compiled by a worker,
+	 * or locally if no worker is available or accepts its flags,
+	 * so the default number of jobs is raised by the jobs of the workers.
+	 * The workers, their jobs and the timeout can be overridden with
+	 * COMPILE_WORKERS, COMPILE_WORKER_JOBS and COMPILE_WORKERS_TIMEOUT,
+	 * and setting COMPILE_WORKERS to empty compiles locally.
+	 * Replaces any other launcher than the object cache,
+	 * which then compiles the objects that it is missing on the workers.
+	 * Workers on other machines must be told the host to listen on.
+	 * @param workers	the workers, as "host:port" separated by
+	 *			spaces
+	 * @param worker_jobs	the number of jobs run by each worker
+	 * @param timeout_ms	the timeout of connecting to a worker,
+	 *			in milliseconds
+	 * @throws NumberFormatException	if a port is not a number
+	 */
+	public void setCompileWorkers(String workers, int worker_jobs,
+				      int timeout_ms)
+	{
+		CompileClient.parseWorkers(workers);
+		compile_workers = workers;
+		compile_worker_jobs = worker_jobs;
+		compile_workers_timeout = timeout_ms;
+		setLibraryLauncher();
+	}
+
+	/**
+	 * Write the Java launcher and the location of this library
+	 * into the common resources file,
+	 * for the launchers run from this library.
+	 * The location is only written relative to the root directory,
+	 * so that the file is the same in every checkout;
+	 * a library outside of it must be given in MAKE_UTILS,
+	 * or else its launchers are not used,
+	 * which the top-level make warns about.
+	 * @param output	the common resources file
+	 * @throws IOException	if writing failed
+	 */
+	private void writeMakeUtils(MakeFormatter output) throws IOException
+	{
+		String root_path = getBuildPath() + File.separator;
+		String make_utils;
+
+		try {
+			make_utils = new File(Mainfile.class
+					      .getProtectionDomain()
+					      .getCodeSource().getLocation()
+					      .toURI()).getCanonicalPath();
+		} catch (URISyntaxException use) {
+			throw new IOException(use);
+		}
+		if (make_utils.startsWith(root_path)) {
+			make_utils = MakeFormatter.genUseVar(ROOT_DIR_VAR) +
+				     File.separator +
+				     make_utils.substring(root_path.length());
+		} else {
+			make_utils = "";
+		}
+		output.assignDefaultVar(MAKE_UTILS_JAVA_VAR,
+					MAKE_UTILS_JAVA_VAL);
+		output.assignDefaultVar(MAKE_UTILS_VAR, make_utils);
+		output.write(TOP_LEVEL_COND);
+		output.newLine();
+		output.write(MISSING_MAKE_UTILS_COND);
+		output.newLine();
+		output.write(MISSING_MAKE_UTILS_WARNING);
+		output.newLine();
+		output.write(END_COND);
+		output.newLine();
+		output.write(END_COND);
+		output.newLine();
+	}
+
+	/**
+	 * Write the compile workers into the common resources file
+	 * @param output	the common resources file
+	 * @throws IOException	if writing failed
+	 */
+	private void writeCompileWorkers(MakeFormatter output)
+		throws IOException
+	{
+		output.assignDefaultVar(COMPILE_WORKERS_VAR, compile_workers);
+		output.assignDefaultVar(COMPILE_WORKER_JOBS_VAR,
+					Integer.toString(compile_worker_jobs));
+		output.assignDefaultVar(COMPILE_WORKERS_TIMEOUT_VAR,
+					Integer
+					.toString(compile_workers_timeout));
+	}
+
+	/**
+	 * Write the settings of the object cache
+	 * into the common resources file
+	 * @param output	the common resources file
+	 * @throws IOException	if writing failed
+	 */
+	private void writeObjectCache(MakeFormatter output) throws IOException
+	{
+		String cache_dir = object_cache;
+
+		if (!new File(cache_dir).isAbsolute()) {
+			cache_dir = MakeFormatter.genUseVar(ROOT_DIR_VAR) +
+				    File.separator + cache_dir;
+		}
+		output.assignDefaultVar(OBJECT_CACHE_DIR_VAR, cache_dir);
+		output.assignDefaultVar(OBJECT_CACHE_SIZE_VAR,
+					Long.toString(object_cache_bytes));
+		output.assignDefaultVar(OBJECT_CACHE_URL_VAR,
+					remote_cache == null ? "" :
+							       remote_cache);
+		output.assignDefaultVar(OBJECT_CACHE_TIMEOUT_VAR,
+					Integer
+					.toString(remote_cache_timeout));
+	}
 
-		/* Generate rest of project */
-		generate();
+	/**
+	 * Write the launcher, disabled by the top-level make
+	 * if it is not installed,
+	 * and the settings that keep the objects independent of the
+	 * root directory, into the common resources file
+	 * @param output	the common resources file
+	 * @throws IOException	if writing failed
+	 */
+	private void writeLauncher(MakeFormatter output) throws IOException
+	{
+		output.assignDefaultVar(LAUNCHER_VAR, launcher);
+		output.write(TOP_LEVEL_COND);
+		output.newLine();
+		output.assignSimpleVar(LAUNCHER_VAR, INSTALLED_LAUNCHER_VAL);
+		output.write(END_COND);
+		output.newLine();
+		output.write(MakeFormatter.genList(EXPORT_CMD, LAUNCHER_VAR));
+		output.newLine();
+		output.write(EXPORT_CMD + MakeFormatter.LIST_DELIM);
+		output.assignDefaultVar(CCACHE_BASEDIR_VAR,
+					MakeFormatter.genUseVar(ROOT_DIR_VAR));
+		output.appendVar(Makefile.STATIC_CPPFLAGS_VAR,
+				 DEBUG_PREFIX_MAP_FLAG);
+	}
+
+	/**
+	 * Precompile a header in the include directory,
+	 * such as one that includes all the others,
+	 * and include it first in every object,
+	 * so that the headers are parsed only once.
+	 * The precompiled header is next to the header,
+	 * or in the include directory under BUILD_ROOT
+	 * when building out of tree.
+	 * It is compiled again when any header that it includes changes,
+	 * and the objects are compiled again after it.
+	 * The objects of shared libraries use a position-independent
+	 * precompiled header, in the PIC_PCH_DIR subdirectory.
+	 * All the sources must be in the language of the header.
+	 * @param header	the name of the header,
+	 *			relative to the include directory
+	 * @param cpp		is the header compiled as C++?
+	 * @return		true iff there is an include directory
+	 */
+	public boolean setPrecompiledHeader(String header, boolean cpp)
+	{
+		String pch = MakeFormatter.genUseVar(PCH_VAR);
+		String pic_pch = MakeFormatter.genUseVar(PIC_PCH_VAR);
+		String path = MakeFormatter.genUseVar(ROOT_DIR_VAR) +
+			      File.separator + INCLUDE_NAME +
+			      File.separator + header;
+
+		if (!has_include) {
+			return false;
+		}
+		precompiled_header_name = header;
+		precompiled_header = new PrecompiledHeaderTarget(pch, path,
+								 cpp);
+		pic_precompiled_header = new PrecompiledHeaderTarget(pic_pch,
+								     path, cpp,
+								     true);
+		return true;
+	}
+
+	/**
+	 * Returns the precompiled header
+	 * @return precompiled_header
+	 */
+	public Target getPrecompiledHeader()
+	{
+		return precompiled_header;
+	}
+
+	/**
+	 * Returns the position-independent precompiled header
+	 * @return pic_precompiled_header
+	 */
+	public Target getPicPrecompiledHeader()
+	{
+		return pic_precompiled_header;
+	}
+
+	/**
+	 * Write the variables locating and using the precompiled header
+	 * into the common resources file
+	 * @param output	the common resources file
+	 * @throws IOException	if writing failed
+	 */
+	private void
+	writePrecompiledHeader(MakeFormatter output) throws IOException
+	{
+		String pch_dir = MakeFormatter.genUseVar(output_root == null ?
+							 ROOT_DIR_VAR :
+							 BUILD_ROOT_VAR) +
+				 File.separator + INCLUDE_NAME;
+		String header = MakeFormatter.genUseVar(PCH_DIR_VAR) +
+				File.separator + precompiled_header_name;
+
+		String pic_header = MakeFormatter.genUseVar(PCH_DIR_VAR) +
+				    File.separator + PIC_PCH_DIR +
+				    File.separator + precompiled_header_name;
+
+		output.assignDefaultVar(PCH_DIR_VAR, pch_dir);
+		output.assignVar(PCH_VAR, header + PCH_EXT);
+		output.assignVar(PCH_FLAGS_VAR,
+				 MakeFormatter.genList(INVALID_PCH_FLAG,
+						       FORCE_INCLUDE_FLAG,
+						       header));
+		if (usesPrecompiledHeader(true)) {
+			output.assignVar(PIC_PCH_VAR, pic_header + PCH_EXT);
+			output.assignVar(PIC_PCH_FLAGS_VAR,
+					 MakeFormatter
+					 .genList(INVALID_PCH_FLAG,
+						  FORCE_INCLUDE_FLAG,
+						  pic_header));
+		}
+	}
+
+	/**
+	 * Returns the cache of directory listings used during population
+	 * @return scan_cache
+	 */
+	public ScanCache getScanCache()
+	{
+		return scan_cache;
+	}
+
+	/**
+	 * Set "scan_cache" field, so that listings are reused
+	 * from earlier populations.
+	 * Must be called before populating.
+	 * @param sc	the new value for "scan_cache"
+	 */
+	public void setScanCache(ScanCache sc)
+	{
+		scan_cache = sc;
+	}
+
+	/**
+	 * Set "workspace" field, so that the subdirectory trees
+	 * are rendered once for all the roots in the workspace
+	 * that have identical trees at the same path.
+	 * Only meaningful for trees populated automatically.
+	 * @param w	the new value for "workspace"
+	 */
+	void setWorkspace(Workspace w)
+	{
+		workspace = w;
+	}
+
+	/**
+	 * Generate the Makefiles of a subdirectory tree,
+	 * through the workspace if there is one,
+	 * unless the tree is customized.
+	 * @param subdir	the subdirectory
+	 * @param batch		the pipeline batch that writes the Makefiles
+	 * @throws IOException	if there was an error in rendering
+	 *			the Makefiles
+	 */
+	void generateSubdir(Makefile subdir,
+			    GenerationPipeline.Batch batch) throws IOException
+	{
+		if (workspace == null || subdir.isCustomized()) {
+			subdir.generate(batch);
+		} else {
+			workspace.generateSubtree(this, subdir, batch);
+		}
+	}
+
+	/**
+	 * Set the parallelism used if make is run without "-j".
+	 * Sub-makes always share the jobserver of the top-level make,
+	 * so the number of jobs applies to the whole build.
+	 * @param dj	default_jobs, or 0 to leave the default to make
+	 * @param ml	max_load, or 0 for no limit
+	 */
+	public void setDefaultParallelism(int dj, int ml)
+	{
+		default_jobs = dj;
+		max_load = ml;
+	}
+
+	/**
+	 * Set the parallelism used if make is run without "-j"
+	 * from the cores and memory of this machine,
+	 * running one job per core,
+	 * but no more jobs than fit in the physical memory,
+	 * and not starting new jobs
+	 * while the load average is above the number of cores.
+	 * @param job_memory	the memory needed by each job, in bytes,
+	 *			such as by the largest link,
+	 *			or 0 to only use the number of cores
+	 */
+	public void detectParallelism(long job_memory)
+	{
+		int cores = Runtime.getRuntime().availableProcessors();
+		OperatingSystemMXBean os = ManagementFactory
+					   .getOperatingSystemMXBean();
+		long jobs = cores;
+
+		if (job_memory > 0 &&
+		    os instanceof com.sun.management.OperatingSystemMXBean) {
+			long memory = ((com.sun.management
+					.OperatingSystemMXBean) os)
+				      .getTotalMemorySize();
+
+			jobs = Math.max(1, Math.min(jobs, memory / job_memory));
+		}
+		setDefaultParallelism((int) jobs, cores);
+	}
+
+	/**
+	 * Returns if the fast dialect is generated
+	 * @return fast_dialect
+	 */
+	public boolean isFastDialect()
+	{
+		return fast_dialect;
+	}
+
+	/**
+	 * Set "fast_dialect" field.
+	 * The fast dialect disables make's built-in rules and variables,
+	 * which make would otherwise consider for every file,
+	 * replacing them with explicit rules to compile each kind of source,
+	 * and assigns the variables that do not depend on later ones
+	 * with ":=", so that they are expanded only once.
+	 * Additional variable assignments are not changed,
+	 * since they may depend on later ones.
+	 * @param fd	the new value for "fast_dialect"
+	 */
+	public void setFastDialect(boolean fd)
+	{
+		fast_dialect = fd;
+	}
+
+	/**
+	 * Returns the directory under which the generated files are put
+	 * @return output_root
+	 */
+	public String getOutputRoot()
+	{
+		return output_root;
+	}
+
+	/**
+	 * Set "output_root" field,
+	 * so that objects, archives and binaries are generated
+	 * in a mirrored directory tree under it,
+	 * in a subdirectory named after the configuration,
+	 * such as "build/debug" for "make CONFIG=debug",
+	 * which is the build profile by default,
+	 * and several configurations can be built at the same time.
+	 * The whole tree can also be moved by setting BUILD_ROOT.
+	 * Must be called before populating.
+	 * @param or	the new value for "output_root"
+	 */
+	public void setOutputRoot(String or)
+	{
+		output_root = or;
+	}
+
+	/**
+	 * Internal storage class for build profiles
+	 */
+	private static class Profile
+	{
+		/** flags only used for compiling */
+		private String cppflags;
+		/** flags only used for linking, or null */
+		private String ldflags;
+		/** the archiver, or null for the default */
+		private String archiver;
+
+		/**
+		 * @param cf	cppflags
+		 * @param lf	ldflags
+		 * @param a	archiver
+		 */
+		public Profile(String cf, String lf, String a)
+		{
+			cppflags = cf;
+			ldflags = lf;
+			archiver = a;
+		}
+
+		public String toString()
+		{
+			return MakeFormatter.genList(cppflags,
+						     String.valueOf(ldflags),
+						     String.valueOf(archiver));
+		}
+	}
+
+	/**
+	 * Add a build profile, which can be selected with PROFILE
+	 * when running make.
+	 * The flags are added to the static part of the C preprocessor flags,
+	 * which are only used for compiling,
+	 * and the link flags to LDFLAGS, which are the only flags
+	 * used for linking.
+	 * So flags that also matter when linking,
+	 * such as "-flto", "-fsanitize=" and "-fprofile-generate",
+	 * must be given in both.
+	 * @param name		the name of the profile
+	 * @param cppflags	the flags used when compiling
+	 * @param ldflags	the flags used when linking, or null
+	 * @param archiver	the archiver to use instead of the default,
+	 *			or null
+	 * @return		true iff the profile has not already been added
+	 */
+	public boolean addProfile(String name, String cppflags,
+				  String ldflags, String archiver)
+	{
+		if (profiles.containsKey(name)) {
+			return false;
+		}
+		profiles.put(name, new Profile(cppflags, ldflags, archiver));
+		return true;
+	}
+
+	/**
+	 * Add the default build profiles, and build the release profile
+	 * if PROFILE is not set:
+	 * "debug", which is not optimized;
+	 * "release", which is optimized;
+	 * "lto", which is optimized with link-time optimization,
+	 * and archives the objects with "gcc-ar"
+	 * so that the archives can be linked;
+	 * and "native", which is optimized for the machine in MARCH,
+	 * which is the building machine by default.
+	 * All of them keep the debugging information.
+	 */
+	public void addDefaultProfiles()
+	{
+		String
+		lto_cppflags = MakeFormatter.genList(RELEASE_CPPFLAGS_VAL,
+						     LTO_FLAG);
+
+		addProfile(DEBUG_PROFILE, DEBUG_CPPFLAGS_VAL, null, null);
+		addProfile(RELEASE_PROFILE, RELEASE_CPPFLAGS_VAL, null, null);
+		addProfile(LTO_PROFILE, lto_cppflags, LTO_FLAG, LTO_AR_VAL);
+		addProfile(NATIVE_PROFILE,
+			   MakeFormatter.genList(RELEASE_CPPFLAGS_VAL,
+						 MARCH_FLAG),
+			   null, null);
+		setDefaultProfile(RELEASE_PROFILE);
+	}
+
+	/**
+	 * Set "default_profile" field
+	 * @param dp	the new value for "default_profile"
+	 */
+	public void setDefaultProfile(String dp)
+	{
+		default_profile = dp;
+	}
+
+	/**
+	 * Enable profile-guided optimization,
+	 * adding the "pgo-generate" and "pgo-use" profiles,
+	 * and a "pgo-train" rule in the root Makefile.
+	 * The rule builds the project with instrumentation,
+	 * runs the training command, which should run the binaries
+	 * on a representative workload,
+	 * then rebuilds the project optimized for the recorded profile.
+	 * The profile data is kept in PGO_DIR, which is "pgo"
+	 * under the root directory by default,
+	 * and is removed by "make clean", unless PGO_KEEP is set.
+	 * If there are no other profiles, the release profile is added,
+	 * and built by default.
+	 * Must be called before populating.
+	 * @param command	the training command, in make syntax,
+	 *			run from the root directory,
+	 *			which can be overridden with PGO_TRAIN
+	 */
+	public void setPgoTraining(String command)
+	{
+		if (profiles.isEmpty()) {
+			addProfile(RELEASE_PROFILE, RELEASE_CPPFLAGS_VAL, null,
+				   null);
+		}
+		addProfile(PGO_GENERATE_PROFILE,
+			   MakeFormatter.genList(RELEASE_CPPFLAGS_VAL,
+						 PGO_GENERATE_FLAG),
+			   PGO_GENERATE_FLAG, null);
+		addProfile(PGO_USE_PROFILE,
+			   MakeFormatter.genList(RELEASE_CPPFLAGS_VAL,
+						 PGO_USE_FLAGS),
+			   null, null);
+		pgo_training = command;
+	}
+
+	/**
+	 * Write the directory of the profile data,
+	 * and the training command, into the common resources file
+	 * @param output	the common resources file
+	 * @throws IOException	if writing failed
+	 */
+	private void writePgo(MakeFormatter output) throws IOException
+	{
+		output.assignDefaultVar(PGO_DIR_VAR,
+					MakeFormatter.genUseVar(ROOT_DIR_VAR) +
+					File.separator + PGO_DIR_NAME);
+		output.assignDefaultVar(PGO_TRAIN_VAR, pgo_training);
+	}
+
+	/**
+	 * Generate a recipe line that runs make recursively
+	 * in this directory
+	 * @param args	the goals and variable assignments
+	 * @return	the recipe line
+	 */
+	private static String genSelfMake(String ... args)
+	{
+		return MakeFormatter
+		       .genList(RECURSIVE_PREFIX +
+				MakeFormatter.genUseVar(MAKE_VAR),
+				MakeFormatter.genList(args));
+	}
+
+	/**
+	 * Generate the "pgo-train" rule,
+	 * if profile-guided optimization is enabled.
+	 * Both builds are cleaned first,
+	 * since changing the profile does not remake the objects.
+	 * @param output	the root Makefile
+	 * @throws IOException	if writing failed
+	 */
+	protected void genExtraRules(MakeFormatter output) throws IOException
+	{
+		String config = String.format(CMD_VAR_FMT, CONFIG_VAR,
+					      PGO_CONFIG_VAL);
+		String keep = String.format(CMD_VAR_FMT, PGO_KEEP_VAR, "1");
+
+		if (pgo_training == null) {
+			return;
+		}
+		output.write(MakeFormatter.genList(PHONY_DECL,
+						   PGO_TRAIN_RULE));
+		output.newLine();
+		writeRuleHeader(output, PGO_TRAIN_RULE);
+		output.indent();
+		output.write(genSelfMake(MAKE_CLEAN_RULE, config));
+		output.newLine();
+		output.write(genSelfMake(String.format(CMD_VAR_FMT,
+						       PROFILE_VAR,
+						       PGO_GENERATE_PROFILE),
+					 config));
+		output.newLine();
+		output.write(MakeFormatter.genUseVar(PGO_TRAIN_VAR));
+		output.newLine();
+		output.write(genSelfMake(MAKE_CLEAN_RULE, config, keep));
+		output.newLine();
+		output.write(genSelfMake(String.format(CMD_VAR_FMT,
+						       PROFILE_VAR,
+						       PGO_USE_PROFILE),
+					 config));
+		output.unindent();
+		output.newLine();
+	}
+
+	/**
+	 * Remove the precompiled header when cleaning, if there is one,
+	 * and the profile data,
+	 * if profile-guided optimization is enabled,
+	 * unless PGO_KEEP is set
+	 * @param output	the root Makefile, indented for the recipe
+	 * @throws IOException	if writing failed
+	 */
+	protected void genExtraClean(MakeFormatter output) throws IOException
+	{
+		String remove = MakeFormatter
+				.genList(MakeFormatter.genUseVar(RM_VAR),
+					 MakeFormatter.genUseVar(RM_FLAGS_VAR));
+
+		if (precompiled_header != null) {
+			String pch = MakeFormatter.genUseVar(PCH_VAR);
+
+			output.write(MakeFormatter.genList(remove, pch,
+							   pch +
+							   DEPENDENCY_EXT));
+			output.newLine();
+		}
+		if (precompiled_header != null &&
+		    usesPrecompiledHeader(true)) {
+			String pic_pch = MakeFormatter.genUseVar(PIC_PCH_VAR);
+
+			output.write(MakeFormatter.genList(remove, pic_pch,
+							   pic_pch +
+							   DEPENDENCY_EXT));
+			output.newLine();
+		}
+		if (pgo_training != null) {
+			String pgo_dir = MakeFormatter.genUseVar(PGO_DIR_VAR);
+
+			output.write(String.format(PGO_CLEAN_FMT,
+						   MakeFormatter
+						   .genList(remove, pgo_dir)));
+			output.newLine();
+		}
+	}
+
+	/**
+	 * Write the build profiles into the common resources file,
+	 * adding the flags and archiver of the selected one,
+	 * and stopping make if an unknown one is selected.
+	 * @param output	the common resources file
+	 * @throws IOException	if writing failed
+	 */
+	private void writeProfiles(MakeFormatter output) throws IOException
+	{
+		String[] names = toArray(profiles.keySet());
+		String names_val = MakeFormatter.genList(names);
+		String selected_var = MakeFormatter.genUseVar(PROFILE_VAR);
+		String default_ar = MakeFormatter.genUseVar(Makefile.AR_VAR);
+		boolean has_archiver = false;
+
+		output.assignDefaultVar(PROFILE_VAR, default_profile == null ?
+						     names[0] :
+						     default_profile);
+		output.write(String.format(UNKNOWN_PROFILE_COND_FMT,
+					   names_val));
+		output.newLine();
+		output.write(String.format(UNKNOWN_PROFILE_ERROR_FMT,
+					   names_val));
+		output.newLine();
+		output.write(END_COND);
+		output.newLine();
+		output.assignDefaultVar(MARCH_VAR, MARCH_VAL);
+
+		for (Map.Entry<String, Profile> entry : profiles.entrySet()) {
+			String name = entry.getKey();
+			Profile profile = entry.getValue();
+
+			assignStaticVar(output, PROFILE_CPPFLAGS_PREFIX + name,
+					profile.cppflags);
+			if (profile.ldflags != null) {
+				assignStaticVar(output,
+						PROFILE_LDFLAGS_PREFIX + name,
+						profile.ldflags);
+			}
+			if (profile.archiver != null) {
+				assignStaticVar(output,
+						PROFILE_AR_PREFIX + name,
+						profile.archiver);
+				has_archiver = true;
+			}
+		}
+
+		output.appendVar(Makefile.STATIC_CPPFLAGS_VAR,
+				 MakeFormatter
+				 .genUseVar(PROFILE_CPPFLAGS_PREFIX +
+					    selected_var));
+		output.appendVar(Makefile.LDFLAGS_VAR,
+				 MakeFormatter
+				 .genUseVar(PROFILE_LDFLAGS_PREFIX +
+					    selected_var));
+		if (has_archiver) {
+			/* simple, since it refers to its own old value */
+			output.assignSimpleVar(Makefile.AR_VAR,
+					       String.format(PROFILE_AR_FMT,
+							     default_ar));
+		}
+	}
+
+	/**
+	 * Write the variables locating the output directories
+	 * into the common resources file
+	 * @param output	the common resources file
+	 * @throws IOException	if writing failed
+	 */
+	private void writeOutputRoot(MakeFormatter output) throws IOException
+	{
+		String build_root = output_root;
+
+		if (!new File(build_root).isAbsolute()) {
+			build_root = MakeFormatter.genUseVar(ROOT_DIR_VAR) +
+				     File.separator + build_root;
+		}
+		output.assignDefaultVar(CONFIG_VAR, profiles.isEmpty() ?
+						    CONFIG_VAL :
+						    MakeFormatter
+						    .genUseVar(PROFILE_VAR));
+		output.assignDefaultVar(BUILD_ROOT_VAR,
+					build_root + File.separator +
+					MakeFormatter.genUseVar(CONFIG_VAR));
+	}
+
+	/**
+	 * Write the rules compiling each kind of source file,
+	 * which replace make's built-in rules in the fast dialect,
+	 * put the objects in the output directory
+	 * when building out of tree,
+	 * or run the compiler with the launcher
+	 * @param output	the common resources file
+	 * @throws IOException	if writing failed
+	 */
+	private void writeCompileRules(MakeFormatter output) throws IOException
+	{
+		String out_dir = MakeFormatter.genUseVar(Makefile.OUT_DIR_VAR);
+		String object_pattern = PATTERN_STEM + Makefile.OBJ_EXT;
+
+		if (output_root != null) {
+			object_pattern = out_dir + File.separator +
+					 object_pattern;
+		}
+		for (String code_ext : Makefile.CODE_EXTS) {
+			boolean is_c = Makefile.C_EXT.equals(code_ext);
+			String compiler_var = is_c ? Makefile.CC_VAR :
+						     Makefile.CPP_VAR;
+			String flags_var = is_c ? Makefile.CFLAGS_VAR :
+						  Makefile.CXXFLAGS_VAR;
+
+			if (output_root == null) {
+				writeRuleHeader(output, object_pattern,
+						PATTERN_STEM + code_ext);
+			} else {
+				writeRuleHeader(output, object_pattern,
+						PATTERN_STEM + code_ext,
+						Makefile.ORDER_ONLY_MARK,
+						out_dir);
+			}
+			output.indent();
+			if (launcher != null) {
+				output.write(MakeFormatter
+					     .genUseVar(LAUNCHER_VAR) +
+					     MakeFormatter.LIST_DELIM);
+			}
+			output.write(MakeFormatter
+				     .genList(MakeFormatter
+					      .genUseVar(compiler_var),
+					      MakeFormatter
+					      .genUseVar(flags_var),
+					      MakeFormatter
+					      .genUseVar(Makefile.CPPFLAGS_VAR),
+					      COMPILE_ONLY_FLAG, OUTPUT_FLAG,
+					      OUT_FIRST_IN_VARS));
+			output.unindent();
+			output.newLine();
+		}
+	}
+
+	/**
+	 * Declare a pool, which limits how many recipes of the targets
+	 * in it run at the same time, anywhere in the project.
+	 * The size can be overridden on the command line,
+	 * with the variable named POOL_VAR_PREFIX followed by the name.
+	 * @param name	the name of the pool, for Target.setPool
+	 * @param size	the default number of recipes
+	 *		that can run at the same time
+	 * @return	true iff the pool has not already been declared
+	 */
+	public boolean addPool(String name, int size)
+	{
+		if (pools.containsKey(name)) {
+			return false;
+		}
+		pools.put(name, size);
+		return true;
+	}
+
+	/**
+	 * Check if a pool has been declared
+	 * @param name	the name of the pool
+	 * @return	true iff the pool has been declared with addPool
+	 */
+	public boolean hasPool(String name)
+	{
+		return pools.containsKey(name);
+	}
+
+	/**
+	 * Generate the start of the recipe lines that run in a pool
+	 * @param name	the name of the pool
+	 * @return	the command that runs the rest of the line in the pool,
+	 *		followed by a space
+	 */
+	public static String genPoolPrefix(String name)
+	{
+		String lock_path = MakeFormatter.genUseVar(POOL_DIR_VAR) +
+				   File.separator + POOL_LOCK_PREFIX + name;
+
+		return MakeFormatter
+		       .genList(MakeFormatter.genUseVar(RUN_IN_POOL_VAR),
+				lock_path,
+				MakeFormatter.genUseVar(POOL_VAR_PREFIX + name),
+				"");
+	}
+
+	/**
+	 * Write the command running recipes in pools,
+	 * and the sizes of the pools, into the common resources file,
+	 * if there are any pools.
+	 * The locks are kept in the root directory,
+	 * or in the build root if there is one,
+	 * so that out-of-tree builds leave the sources clean,
+	 * unless overridden.
+	 * @param output	the common resources file
+	 * @throws IOException	if writing failed
+	 */
+	private void writePools(MakeFormatter output) throws IOException
+	{
+		if (pools.isEmpty()) {
+			return;
+		}
+		if (output_root == null) {
+			output.assignDefaultVar(POOL_DIR_VAR,
+						MakeFormatter
+						.genUseVar(ROOT_DIR_VAR));
+			output.assignVar(RUN_IN_POOL_VAR,
+					 RUN_IN_POOL_START + RUN_IN_POOL_END);
+		} else {
+			output.assignDefaultVar(POOL_DIR_VAR,
+						MakeFormatter
+						.genUseVar(BUILD_ROOT_VAR));
+			output.assignVar(RUN_IN_POOL_VAR,
+					 RUN_IN_POOL_START + POOL_MKDIR_CMD +
+					 RUN_IN_POOL_END);
+		}
+		for (Map.Entry<String, Integer> pool : pools.entrySet()) {
+			output.assignDefaultVar(POOL_VAR_PREFIX + pool.getKey(),
+						pool.getValue().toString());
+		}
+	}
+
+	/**
+	 * Write the default parallelism into the common resources file,
+	 * if it was set, or if the compiles are distributed,
+	 * in which case the number of jobs is counted when make runs,
+	 * from the processors of that machine and the workers.
+	 * The values can be overridden on the command line.
+	 * @param output	the common resources file
+	 * @throws IOException	if writing failed
+	 */
+	private void writeParallelism(MakeFormatter output) throws IOException
+	{
+		String flags = "";
+
+		if (default_jobs <= 0 && compile_workers == null &&
+		    max_load <= 0) {
+			return;
+		}
+		if (compile_workers != null) {
+			/* the local jobs, and the jobs sent to the workers */
+			output.assignDefaultVar(JOBS_VAR,
+						String.format(WORKER_JOBS_FMT,
+							      default_jobs));
+			flags = JOBS_FLAG + MakeFormatter.genUseVar(JOBS_VAR);
+		} else if (default_jobs > 0) {
+			output.assignDefaultVar(JOBS_VAR,
+						Integer.toString(default_jobs));
+			flags = JOBS_FLAG + MakeFormatter.genUseVar(JOBS_VAR);
+		}
+		if (max_load > 0) {
+			output.assignDefaultVar(MAX_LOAD_VAR,
+						Integer.toString(max_load));
+			flags = MakeFormatter
+				.genList(flags, LOAD_FLAG +
+						MakeFormatter
+						.genUseVar(MAX_LOAD_VAR))
+				.trim();
+		}
+		output.write(TOP_LEVEL_COND);
+		output.newLine();
+		output.appendVar(MAKEFLAGS_VAR, flags);
+		output.write(END_COND);
+		output.newLine();
+	}
+
+	/**
+	 * Also add the parts of the common resources file
+	 * that are not fixed.
+	 * @param digest	the digest to update
+	 */
+	void digest(MessageDigest digest)
+	{
+		digestSettings(digest);
+		super.digest(digest);
+	}
+
+	/**
+	 * Add the settings of the project,
+	 * which also affect the Makefiles of the subdirectories,
+	 * to a digest.
+	 * @param digest	the digest to update
+	 */
+	void digestSettings(MessageDigest digest)
+	{
+		digest.update((byte) (has_include ? 1 : 0));
+		digest.update(Integer.toString(default_jobs).getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(Integer.toString(max_load).getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(pools.toString().getBytes());
+		digest.update((byte) (fast_dialect ? 1 : 0));
+		digest.update(String.valueOf(output_root).getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(profiles.toString().getBytes());
+		digest.update(String.valueOf(default_profile).getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(String.valueOf(pgo_training).getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(String.valueOf(linker).getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(String.valueOf(launcher).getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(String.valueOf(object_cache).getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(Long.toString(object_cache_bytes).getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(String.valueOf(remote_cache).getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(Integer.toString(remote_cache_timeout)
+			      .getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(String.valueOf(compile_workers).getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(Integer.toString(compile_worker_jobs).getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(Integer.toString(compile_workers_timeout)
+			      .getBytes());
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update((byte) (split_debug_info ? 1 : 0));
+		digest.update(String.valueOf(precompiled_header_name)
+			      .getBytes());
+		if (precompiled_header != null) {
+			digest.update((byte) (precompiled_header.isCpp() ?
+					      1 : 0));
+		}
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+	}
+
+	/**
+	 * Generate the Makefiles for the whole project,
+	 * as well as the common resources file,
+	 * into the project directory itself,
+	 * using a pipeline with the default number of writers.
+	 * @throws IOException	if there was an error in writing the Makefiles
+	 *			or the resources
+	 */
+	public void generateProject() throws IOException
+	{
+		generateProject(new FileSink(getBuildDir()));
+	}
+
+	/**
+	 * Generate the Makefiles for the whole project,
+	 * as well as the common resources file,
+	 * using a pipeline with the default number of writers.
+	 * @param sink		where to write the files.
+	 *			It is not closed.
+	 * @throws IOException	if there was an error in writing the Makefiles
+	 *			or the resources
+	 */
+	public void generateProject(OutputSink sink) throws IOException
+	{
+		GenerationPipeline pipeline = new GenerationPipeline();
+
+		try {
+			generateProject(pipeline, sink);
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	/**
+	 * Generate the Makefiles for the whole project,
+	 * as well as the common resources file,
+	 * into the project directory itself,
+	 * and wait for all of them to be written.
+	 * @param pipeline	the pipeline that writes the files,
+	 *			whose counters will include this project
+	 * @throws IOException	if there was an error in writing the Makefiles
+	 *			or the resources
+	 */
+	public void generateProject(GenerationPipeline pipeline)
+	throws IOException
+	{
+		generateProject(pipeline, new FileSink(getBuildDir()));
+	}
+
+	/**
+	 * Render the Makefiles for the whole project,
+	 * as well as the common resources file,
+	 * and compare them with the files in the project directory,
+	 * without writing anything.
+	 * @return		sorted paths, relative to the root directory,
+	 *			of the files that are missing or out of date
+	 * @throws IOException	if there was an error in rendering the files
+	 *			or reading the existing ones
+	 */
+	public List<String> checkProject() throws IOException
+	{
+		CheckSink sink = new CheckSink(getBuildDir());
+
+		generateProject(sink);
+		return sink.getStalePaths();
+	}
+
+	/**
+	 * Generate the Makefiles for the whole project,
+	 * as well as the common resources file,
+	 * and wait for all of them to be written.
+	 * @param pipeline	the pipeline that writes the files,
+	 *			whose counters will include this project
+	 * @param sink		where to write the files.
+	 *			It is not closed.
+	 * @throws IOException	if there was an error in writing the Makefiles
+	 *			or the resources
+	 */
+	public void generateProject(GenerationPipeline pipeline,
+				    OutputSink sink) throws IOException
+	{
+		GenerationPipeline.Batch batch = pipeline.startBatch(sink);
+		GenerationPipeline.RenderBuffer buffer;
+		boolean submitted = false;
+		boolean generated = false;
+
+		try {
+			/* generate common directory file */
+			buffer = batch.takeBuffer();
+			try {
+				writeCommon(new MakeFormatter(buffer));
+				batch.submit(COMMON_NAME, buffer);
+				submitted = true;
+			} finally {
+				if (!submitted) {
+					batch.returnBuffer(buffer);
+				}
+			}
+
+			/* Generate rest of project */
+			generate(batch);
+			generated = true;
+		} finally {
+			if (!generated) {
+				/* wait for the files that were submitted */
+				batch.cancel();
+			}
+		}
+		batch.finish();
+	}
+
+	/**
+	 * Render the common resources file.
+	 * @param output	the formatter writing into the buffer
+	 * @throws IOException	if there was an error in rendering
+	 */
+	private void writeCommon(MakeFormatter output) throws IOException
+	{
+		/* disable built-in rules and variables */
+		if (fast_dialect) {
+			output.appendVar(MAKEFLAGS_VAR, NO_BUILTINS_FLAGS);
+			output.write(SUFFIXES_DECL);
+			output.newLine();
+		}
+
+		/* set shell command variables */
+		assignStaticVar(output, Makefile.CC_VAR, CC_VAL);
+		assignStaticVar(output, Makefile.CPP_VAR, CPP_VAL);
+		assignStaticVar(output, Makefile.AR_VAR, AR_VAL);
+		if (fast_dialect) {
+			/* no longer built in */
+			assignStaticVar(output, Makefile.RM_VAR, RM_VAL);
+		}
+		assignStaticVar(output, Makefile.STATIC_CPPFLAGS_VAR,
+				STATIC_CPPFLAGS_VAL);
+		assignStaticVar(output, Makefile.AR_FLAGS_VAR, AR_FLAGS_VAL);
+		assignStaticVar(output, Makefile.RM_FLAGS_VAR, RM_FLAGS_VAL);
+		if (!pools.isEmpty() || output_root != null ||
+		    pgo_training != null || precompiled_header != null ||
+		    launcher != null) {
+			output.assignSimpleVar(ROOT_DIR_VAR, ROOT_DIR_VAL);
+		}
+		if (pgo_training != null) {
+			writePgo(output);
+		}
+		if (!profiles.isEmpty()) {
+			writeProfiles(output);
+		}
+		writeLinker(output);
+		if (object_cache != null || compile_workers != null) {
+			writeMakeUtils(output);
+		}
+		if (object_cache != null) {
+			writeObjectCache(output);
+		}
+		if (compile_workers != null) {
+			writeCompileWorkers(output);
+		}
+		if (launcher != null) {
+			writeLauncher(output);
+		}
+		writeParallelism(output);
+		writePools(output);
+		if (output_root != null) {
+			writeOutputRoot(output);
+		}
+		if (precompiled_header != null) {
+			writePrecompiledHeader(output);
+		}
+		if (fast_dialect || output_root != null || launcher != null) {
+			writeCompileRules(output);
+		}
+
+		output.close();
 	}
 }
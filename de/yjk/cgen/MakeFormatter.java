@@ -8,6 +8,7 @@ import de.yjk.utils.FileFormatter;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 
 /**
  * Generates files formatted in the Makefile/shell syntax
@@ -20,6 +21,10 @@ public class MakeFormatter extends FileFormatter
 	private static final String VAR_DEF_FMT = "%s=%s";
 	/** template for concatenating value to variable */
 	private static final String VAR_CAT_FMT = "%s+=%s";
+	/** template for assigning value of variable, expanded only once */
+	private static final String VAR_SIMPLE_FMT = "%s:=%s";
+	/** template for assigning value to variable if it is not set yet */
+	private static final String VAR_DEFAULT_FMT = "%s?=%s";
 
 	/** delimiter between list elements, such as multiple options */
 	public static final char LIST_DELIM = ' ';
@@ -34,6 +39,15 @@ public class MakeFormatter extends FileFormatter
 		super(in_file);
 	}
 
+	/**
+	 * Constructor for FileFormatter(Writer)
+	 * @param out	the Writer to pass to the superconstructor
+	 */
+	public MakeFormatter(Writer out)
+	{
+		super(out);
+	}
+
 	/**
 	 * Write line to assign value to named variable
 	 * @param name		name of variable
@@ -46,6 +60,34 @@ public class MakeFormatter extends FileFormatter
 		newLine();
 	}
 
+	/**
+	 * Write line to assign value to named variable,
+	 * expanding the value once, when the line is read
+	 * @param name		name of variable
+	 * @param value		new value of variable
+	 * @throws IOException	if there was an error during writing
+	 */
+	public void assignSimpleVar(String name,
+				    String value) throws IOException
+	{
+		write(String.format(VAR_SIMPLE_FMT, name, value));
+		newLine();
+	}
+
+	/**
+	 * Write line to assign value to named variable,
+	 * unless it is already set, such as on the command line
+	 * @param name		name of variable
+	 * @param value		default value of variable
+	 * @throws IOException	if there was an error during writing
+	 */
+	public void assignDefaultVar(String name,
+				     String value) throws IOException
+	{
+		write(String.format(VAR_DEFAULT_FMT, name, value));
+		newLine();
+	}
+
 	/**
 	 * Write line to append value to named variable
 	 * @param name		name of variable
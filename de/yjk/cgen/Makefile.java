@@ -15,9 +15,15 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Collections;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
+
+import de.yjk.utils.FileFormatter;
 
 /**
  * Contains Makefile components.
@@ -37,6 +43,16 @@ public class Makefile
 	private List<Makefile> subdirs;
 	/** additional variable assignments */
 	private Map<String, VarAssignment> assignments;
+	/**
+	 * order-only prerequisites of subdirectories and targets,
+	 * keyed by the name of the subdirectory or target that waits for them
+	 */
+	private Map<String, List<String>> orders;
+	/**
+	 * files generated by the Makefiles of subdirectories,
+	 * keyed by path, with the names of the subdirectories
+	 */
+	private Map<String, String> subdir_products;
 	/**
 	 * custom name of the archive of all the object files.
 	 * null by default, so that archive is named after directory
@@ -48,12 +64,72 @@ public class Makefile
 	 * true by default
 	 */
 	private boolean make_object_archive;
+	/**
+	 * Have targets been added, or the archive changed,
+	 * beyond what automatic population does?
+	 * false by default
+	 */
+	private boolean customized;
 	/**
 	 * Should this folder be cleaned in the
 	 * "clean" rule in the containing folder?
 	 * true by default
 	 */
 	private boolean auto_clean;
+	/**
+	 * maximum number of sources compiled together in one unity source,
+	 * or 0 if the sources are compiled one by one
+	 */
+	private int unity_max_files;
+	/**
+	 * maximum total size, in bytes, of the sources in one unity source,
+	 * or 0 for no limit
+	 */
+	private long unity_max_bytes;
+	/** names of sources and subdirectories left out of the unity build */
+	private Set<String> unity_excluded;
+	/**
+	 * unity sources generated in this directory, keyed by name,
+	 * with the names of the sources that they include
+	 */
+	private Map<String, List<String>> unity_sources;
+	/**
+	 * how the archive of all the object files is updated.
+	 * FULL by default
+	 */
+	private ArchiveTarget.Mode archive_mode;
+	/**
+	 * During automatic population,
+	 * does the archive take its objects from a response file?
+	 * false by default
+	 */
+	private boolean archive_response_file;
+	/**
+	 * During automatic population,
+	 * does the archive also combine the archives of the subdirectories,
+	 * which are then not returned separately?
+	 * false by default
+	 */
+	private boolean combine_archives;
+	/**
+	 * During automatic population,
+	 * is a shared library created instead of the archive,
+	 * from objects compiled as position-independent code?
+	 * false by default
+	 */
+	private boolean shared_libraries;
+	/**
+	 * maximum number of sources compiled together by one compiler
+	 * process, or 0 if the sources are compiled one by one
+	 */
+	private int batch_size;
+	/**
+	 * names of the sources compiled in batches, by extension,
+	 * before they are grouped into batches
+	 */
+	private Map<String, List<String>> batch_sources;
+	/** batches of sources compiled together */
+	private List<BatchCompileTarget> batches;
 
 	/**
 	 * Internal storage class for additional variable assignments
@@ -96,7 +172,7 @@ public class Makefile
 	/** variable for archive creator */
 	public static final String AR_VAR = "AR";
 	/** variable for command to remove files when cleaning */
-	private static final String RM_VAR = "RM";
+	public static final String RM_VAR = "RM";
 	/* lists of rules */
 	/** variable for list of subdirectories */
 	private static final String SUBDIRS_VAR = "SUBDIRS";
@@ -110,6 +186,11 @@ public class Makefile
 	/* directories */
 	/** variable for the include directory option */
 	public static final String INCLUDE_VAR = "INCLUDE";
+	/**
+	 * variable for the directory containing the generated files
+	 * of this directory, when building out of tree
+	 */
+	public static final String OUT_DIR_VAR = "OUT_DIR";
 	/* command flags */
 	/** variable for the archive command flags */
 	public static final String AR_FLAGS_VAR = "AR_FLAGS";
@@ -122,20 +203,68 @@ public class Makefile
 	public static final String STATIC_CPPFLAGS_VAR = "_CPPFLAGS";
 	/** variable fo all the C preprocessor flags */
 	public static final String CPPFLAGS_VAR = "CPPFLAGS";
+	/** variable for the C compiler flags */
+	public static final String CFLAGS_VAR = "CFLAGS";
+	/** variable for the C++ compiler flags */
+	public static final String CXXFLAGS_VAR = "CXXFLAGS";
+	/** variable for the flags only used when linking */
+	public static final String LDFLAGS_VAR = "LDFLAGS";
+	/** variable for the libraries linked after the inputs */
+	public static final String LDLIBS_VAR = "LDLIBS";
 
 	/** value of the C preprocessor flags */
 	private static final String
 	CPPFLAGS_VAL = MakeFormatter
 		       .genList(MakeFormatter.genUseVar(STATIC_CPPFLAGS_VAR),
 				MakeFormatter.genUseVar(INCLUDE_VAR));
+	/**
+	 * value of the C preprocessor flags,
+	 * with the flags using the precompiled header
+	 */
+	private static final String
+	PCH_CPPFLAGS_VAL = MakeFormatter
+			   .genList(MakeFormatter
+				    .genUseVar(STATIC_CPPFLAGS_VAR),
+				    MakeFormatter
+				    .genUseVar(Mainfile.PCH_FLAGS_VAR),
+				    MakeFormatter.genUseVar(INCLUDE_VAR));
+	/**
+	 * value of the C preprocessor flags,
+	 * with the flags using the position-independent
+	 * precompiled header
+	 */
+	private static final String
+	PIC_PCH_CPPFLAGS_VAL = MakeFormatter
+			       .genList(MakeFormatter
+					.genUseVar(STATIC_CPPFLAGS_VAR),
+					MakeFormatter
+					.genUseVar(Mainfile.PIC_PCH_FLAGS_VAR),
+					MakeFormatter.genUseVar(INCLUDE_VAR));
+	/** directive including a file, only if it exists */
+	private static final String OPTIONAL_INCLUDE_CMD = "-include";
 
 	/** mark between the rule name and dependencies in the rule header */
-	private static final String RULE_NAME_END = ":";
+	static final String RULE_NAME_END = ":";
+	/** mark before the order-only dependencies in the rule header */
+	public static final String ORDER_ONLY_MARK = "|";
+	/** command to create an output directory and its parents */
+	private static final String MKDIR_CMD = "mkdir -p";
+	/** empty recipe, which keeps make from searching implicit rules */
+	private static final String EMPTY_RECIPE = ";";
+	/** format of the error for a target in an undeclared pool */
+	private static final String
+	UNKNOWN_POOL_FMT = "Target %s is in undeclared pool %s.";
 
 	/** name of Makefile, relative to this directory */
 	private static final String MAKEFILE_NAME = "Makefile";
 	/** make flag to switch to subdirectory */
 	public static final String MAKE_SWITCH_FLAG = "-C";
+	/**
+	 * prefix of recipe lines that run make recursively,
+	 * so that they are run, and reached by the jobserver,
+	 * even under "make -n"
+	 */
+	public static final String RECURSIVE_PREFIX = "+";
 	/** Makefile's default rule */
 	public static final String MAKE_ALL_RULE = "all";
 	/** Makefile's clean rule */
@@ -154,6 +283,8 @@ public class Makefile
 	/* output files */
 	/** archive extension */
 	public static final String ARCHIVE_EXT = EXT_MARKER + "a";
+	/** shared library extension */
+	public static final String SHARED_LIB_EXT = EXT_MARKER + "so";
 	/** object file extension */
 	public static final String OBJ_EXT = EXT_MARKER + "o";
 	/* input files */
@@ -171,6 +302,15 @@ public class Makefile
 						  CPP_2_EXT};
 	/** the C preprocessor flag before a directory to include */
 	public static final String INCLUDE_FLAG = "-I";
+	/**
+	 * prefix of the generated unity sources,
+	 * which are not compiled on their own
+	 */
+	public static final String UNITY_PREFIX = "_unity_";
+	/** directive that includes a source in a unity source */
+	private static final String UNITY_INCLUDE = "#include \"%s\"";
+	/** prefix of the stamps of batches of sources */
+	private static final String BATCH_PREFIX = "_batch_";
 
 	/**
 	 * built-in variables for output (after "-o" flag)
@@ -179,6 +319,31 @@ public class Makefile
 	public static String
 	USE_OUT_IN_VARS = MakeFormatter.genList("$@", "$^");
 
+	/**
+	 * Generate a recipe line that runs make recursively
+	 * in a subdirectory.
+	 * Each recursive make should have its own line,
+	 * so that it shares the jobserver of the parent.
+	 * @param dir	the subdirectory in which to run make
+	 * @param goals	the rules to make, or none for the default rule
+	 * @return	the recipe line
+	 */
+	public static String genRecursiveMake(String dir, String ... goals)
+	{
+		String
+		command = MakeFormatter
+			  .genList(RECURSIVE_PREFIX +
+				   MakeFormatter.genUseVar(MAKE_VAR),
+				   MAKE_SWITCH_FLAG, dir);
+
+		if (goals.length > 0) {
+			command = MakeFormatter
+				  .genList(command,
+					   MakeFormatter.genList(goals));
+		}
+		return command;
+	}
+
 	/**
 	 * Convert arbitrary collection of strings into an array
 	 * @param collection	collection to convert to array
@@ -232,6 +397,43 @@ public class Makefile
 		writeRuleHeader(output, name, toArray(dependencies));
 	}
 
+	/**
+	 * Write line to assign a value that only uses variables
+	 * that are already assigned,
+	 * so that in the fast dialect, it is expanded only once
+	 * instead of on every use.
+	 * @param output	the output stream to write to
+	 * @param name		name of variable
+	 * @param value		new value of variable
+	 * @throws IOException	if writing failed
+	 */
+	protected void assignStaticVar(MakeFormatter output, String name,
+				       String value) throws IOException
+	{
+		if (root.isFastDialect()) {
+			output.assignSimpleVar(name, value);
+		} else {
+			output.assignVar(name, value);
+		}
+	}
+
+	/**
+	 * Find the path of a file generated in this directory,
+	 * which is under the output directory when building out of tree.
+	 * @param name	the path of the file,
+	 *		relative to this directory,
+	 *		or to its output directory when building out of tree
+	 * @return	the path to use in rules
+	 */
+	public String toOutPath(String name)
+	{
+		if (root.getOutputRoot() == null) {
+			return name;
+		}
+		return MakeFormatter.genUseVar(OUT_DIR_VAR) + File.separator +
+		       name;
+	}
+
 	/**
 	 * sets root Makefile
 	 * @param r	root
@@ -293,17 +495,33 @@ public class Makefile
 		targets = new LinkedList<Target>();
 		subdirs = new LinkedList<Makefile>();
 		assignments = new TreeMap<String, VarAssignment>();
+		orders = new TreeMap<String, List<String>>();
+		subdir_products = new TreeMap<String, String>();
 		custom_archive_name = null;
 		make_object_archive = true;
+		customized = false;
 		auto_clean = true;
+		unity_max_files = 0;
+		unity_max_bytes = 0;
+		unity_excluded = new TreeSet<String>();
+		unity_sources = new TreeMap<String, List<String>>();
+		archive_mode = ArchiveTarget.Mode.FULL;
+		archive_response_file = false;
+		combine_archives = false;
+		shared_libraries = false;
+		batch_size = 0;
+		batch_sources = new TreeMap<String, List<String>>();
+		batches = new LinkedList<BatchCompileTarget>();
 	}
 
 	/**
-	 * Generate name of archive according to the directory name
+	 * Generate name of archive, or shared library,
+	 * according to the directory name
 	 */
 	private String toArchiveName()
 	{
-		return getName() + ARCHIVE_EXT;
+		return getName() + (shared_libraries ? SHARED_LIB_EXT :
+						       ARCHIVE_EXT);
 	}
 
 	/**
@@ -323,6 +541,7 @@ public class Makefile
 	public void addTarget(Target target)
 	{
 		targets.add(target);
+		customized = true;
 	}
 
 	/**
@@ -351,15 +570,63 @@ public class Makefile
 		return true;
 	}
 
+	/**
+	 * Make a subdirectory or target wait for another one,
+	 * without being remade just because the other one was.
+	 * Subdirectories and targets without any order between them
+	 * are built in parallel by "make -j".
+	 * @param name		the subdirectory or target that waits
+	 * @param prerequisite	the subdirectory or target to wait for
+	 * @return		true iff the order has not already been added
+	 */
+	public boolean addOrder(String name, String prerequisite)
+	{
+		List<String> prerequisites = orders.get(name);
+
+		if (prerequisites == null) {
+			prerequisites = new ArrayList<String>();
+			orders.put(name, prerequisites);
+		} else if (prerequisites.contains(prerequisite)) {
+			return false;
+		}
+		prerequisites.add(prerequisite);
+		return true;
+	}
+
+	/**
+	 * Declare a file that is generated by the Makefile of a subdirectory,
+	 * so that targets can depend on it.
+	 * The file is only checked after the subdirectory has been made,
+	 * and targets depending on it are only remade if it changed.
+	 * @param subdir	the subdirectory generating the file
+	 * @param product	the path of the file, relative to subdir,
+	 *			or to its output directory
+	 *			when building out of tree
+	 * @return		the path of the file to use as a dependency
+	 */
+	public String addSubdirProduct(Makefile subdir, String product)
+	{
+		String path = toOutPath(subdir.getName() + File.separator +
+					product);
+
+		subdir_products.put(path, subdir.getName());
+		return path;
+	}
+
 	/**
 	 * Helper function of populate function to check if
-	 * a file is a C or C++ source file, according to its name
+	 * a file is a C or C++ source file, according to its name.
+	 * Unity sources are not, so that they are not included
+	 * in other unity sources when populating again.
 	 * @param name	name of possible source file
 	 * @return	return true iff
 	 *		name ends in one of the source code extensions
 	 */
 	private static boolean isSource(String name)
 	{
+		if (name.startsWith(UNITY_PREFIX)) {
+			return false;
+		}
 		for (String code_ext : CODE_EXTS) {
 			if (name.endsWith(code_ext)) {
 				return true;
@@ -368,13 +635,205 @@ public class Makefile
 		return false;
 	}
 
+	/**
+	 * Find the name of the object file compiled from a source.
+	 * @param source_name	the name of the source
+	 * @return		the name of the object file
+	 */
+	private static String toObjectName(String source_name)
+	{
+		int ext_start = source_name.lastIndexOf(EXT_MARKER);
+
+		return source_name.substring(0, ext_start) + OBJ_EXT;
+	}
+
+	/**
+	 * Add the object of a source, which is compiled by itself,
+	 * or in a batch with other sources with the same extension
+	 * @param source_name	the name of the source
+	 */
+	private void addSourceObject(String source_name)
+	{
+		String ext = source_name.substring(source_name
+						   .lastIndexOf(EXT_MARKER));
+		List<String> sources = batch_sources.get(ext);
+
+		addObject(toOutPath(toObjectName(source_name)));
+		if (batch_size < 2) {
+			return;
+		}
+		if (sources == null) {
+			sources = new ArrayList<String>();
+			batch_sources.put(ext, sources);
+		}
+		sources.add(source_name);
+	}
+
+	/**
+	 * Add a batch of sources compiled together,
+	 * with a stamp named after the number of batches before it
+	 * @param ext		the extension of the sources
+	 * @param sources	the names of the sources
+	 */
+	private void addBatch(String ext, List<String> sources)
+	{
+		boolean out_of_tree = root.getOutputRoot() != null;
+		List<String> objects = new ArrayList<String>();
+		String stamp = toOutPath(BATCH_PREFIX + batches.size() +
+					 BatchCompileTarget.STAMP_EXT);
+		BatchCompileTarget batch;
+
+		for (String source_name : sources) {
+			objects.add(toOutPath(toObjectName(source_name)));
+		}
+		batch = new BatchCompileTarget(stamp, sources, ext, out_of_tree,
+					       objects);
+		batches.add(batch);
+		targets.add(batch);
+		if (out_of_tree) {
+			addOrder(stamp, MakeFormatter.genUseVar(OUT_DIR_VAR));
+		}
+	}
+
+	/**
+	 * Group the sources compiled in batches into batches
+	 * of up to batch_size sources, in order of name
+	 */
+	private void addBatches()
+	{
+		for (Map.Entry<String, List<String>> ext_sources :
+		     batch_sources.entrySet()) {
+			List<String> sources = ext_sources.getValue();
+			List<String> batch = new ArrayList<String>();
+
+			Collections.sort(sources);
+			for (String source_name : sources) {
+				batch.add(source_name);
+				if (batch.size() == batch_size) {
+					addBatch(ext_sources.getKey(), batch);
+					batch = new ArrayList<String>();
+				}
+			}
+			if (!batch.isEmpty()) {
+				addBatch(ext_sources.getKey(), batch);
+			}
+		}
+		batch_sources.clear();
+	}
+
+	/**
+	 * Add the object of a group of sources to compile together.
+	 * A group of more than one source gets a unity source including them.
+	 * @param group		the names of the sources
+	 * @param unity_ext	the extension of the unity source
+	 */
+	private void addUnityGroup(List<String> group, String unity_ext)
+	{
+		String source_name = group.get(0);
+
+		if (group.size() > 1) {
+			source_name = UNITY_PREFIX + unity_sources.size() +
+				      unity_ext;
+			unity_sources.put(source_name, group);
+			addObject(toOutPath(toObjectName(source_name)));
+		} else {
+			addSourceObject(source_name);
+		}
+	}
+
+	/**
+	 * Group sources of the same language into unity sources,
+	 * in order of name, and add their objects.
+	 * A group is closed when it has reached the maximum number of sources,
+	 * or when the next source would take it over the maximum size.
+	 * @param sources	the sources
+	 * @param unity_ext	the extension of the unity sources
+	 */
+	private void addUnityObjects(List<File> sources, String unity_ext)
+	{
+		List<String> group = new ArrayList<String>();
+		long group_bytes = 0;
+
+		for (File source : sources) {
+			long source_bytes = source.length();
+
+			if (group.size() >= unity_max_files ||
+			    (unity_max_bytes > 0 && !group.isEmpty() &&
+			     group_bytes + source_bytes > unity_max_bytes)) {
+				addUnityGroup(group, unity_ext);
+				group = new ArrayList<String>();
+				group_bytes = 0;
+			}
+			group.add(source.getName());
+			group_bytes += source_bytes;
+		}
+		if (!group.isEmpty()) {
+			addUnityGroup(group, unity_ext);
+		}
+	}
+
+	/**
+	 * Create the archive of the object files during automatic population
+	 * @param path			the path of the archive
+	 * @param subdir_archives	the paths of the archives
+	 *				of subdirectories to combine into it,
+	 *				or null if they are not combined
+	 * @return			the archive
+	 */
+	private ArchiveTarget createArchive(String path,
+					    List<String> subdir_archives)
+	{
+		ArchiveTarget archive;
+
+		if (subdir_archives == null) {
+			archive = new ArchiveTarget(path, object_names);
+		} else {
+			List<String>
+			inputs = new ArrayList<String>(object_names);
+
+			inputs.addAll(subdir_archives);
+			archive = new CombinedArchiveTarget(path, inputs);
+		}
+		archive.setMode(archive_mode);
+		return archive;
+	}
+
+	/**
+	 * Create the Makefile data of a subdirectory,
+	 * which keeps the archive settings of this directory,
+	 * and its unity build settings, unless it is excluded.
+	 * @param subdir	the subdirectory
+	 * @return		its Makefile data
+	 * @throws IOException	if subdir is not a directory,
+	 *			or could not be canonicalized
+	 */
+	private Makefile createSubdir(File subdir) throws IOException
+	{
+		Makefile makefile = new Makefile(subdir, root);
+
+		makefile.setArchiveMode(archive_mode);
+		makefile.setArchiveResponseFile(archive_response_file);
+		makefile.setSharedLibraries(shared_libraries);
+		makefile.setBatchSize(batch_size);
+
+		if (!unity_excluded.contains(subdir.getName())) {
+			makefile.setUnity(unity_max_files, unity_max_bytes);
+		}
+		return makefile;
+	}
+
 	/**
 	 * After subdirs has been populated,
 	 * populate the Makefile with the existing source files,
 	 * an archive that will be generated from the source files,
 	 * and, recursively, the subdirectories in subdirs,
 	 * with all of their subdirectories.
-	 * @return		list of paths to generated library targets
+	 * When building out of tree,
+	 * the objects and archive are put in the output directory.
+	 * @return		list of paths to generated library targets,
+	 *			relative to this directory,
+	 *			or to its output directory
+	 *			when building out of tree
 	 * @throws IOException	if there was an error in populating
 	 *			the subdirectories,
 	 *			or some of the subdirectories in subdirs
@@ -383,39 +842,86 @@ public class Makefile
 	private List<String> populateAfterSubdirsAdded() throws IOException
 	{
 		List<String> archives = new ArrayList<String>();
-		File[] subfiles = build_dir.listFiles();
+		File[]
+		subfiles = root.getScanCache().list(build_dir).getFiles();
+		boolean combine = combine_archives && make_object_archive &&
+				  !shared_libraries;
+		/* paths of the archives of subdirectories to combine */
+		List<String> subdir_archives = new ArrayList<String>();
 
 		for (Makefile subdir : subdirs) {
 			List<String> subarchives = subdir.populateFull();
 			for (String subarchive : subarchives) {
-				archives.add(getName() + File.separator +
-					     subarchive);
+				if (combine) {
+					subdir_archives
+					.add(addSubdirProduct(subdir,
+							      subarchive));
+				} else {
+					archives.add(subdir.getName() +
+						     File.separator +
+						     subarchive);
+				}
 			}
 		}
 
-		/* populate with object files based on source files */
+		/*
+		 * populate with object files based on source files,
+		 * sorting the sources to compile in unity sources by language
+		 */
+		List<File> c_sources = new ArrayList<File>();
+		List<File> cpp_sources = new ArrayList<File>();
+		boolean all_c = true;
+
 		for (File subfile : subfiles) {
 			String name = subfile.getName();
-			if (isSource(name)) {
-				String object_name =
-				name.substring(0,
-					       name.lastIndexOf(EXT_MARKER)) +
-				OBJ_EXT;
-				addObject(object_name);
+			if (!isSource(name)) {
+				continue;
+			}
+			if (!name.endsWith(C_EXT)) {
+				all_c = false;
+			}
+			if (unity_max_files < 2 ||
+			    unity_excluded.contains(name)) {
+				addSourceObject(name);
+			} else if (name.endsWith(C_EXT)) {
+				c_sources.add(subfile);
+			} else {
+				cpp_sources.add(subfile);
 			}
 		}
+		Collections.sort(c_sources);
+		Collections.sort(cpp_sources);
+		addUnityObjects(c_sources, C_EXT);
+		addUnityObjects(cpp_sources, CPP_0_EXT);
+		addBatches();
 		/* populate target with archive if desired */
 		if (make_object_archive) {
-			ArchiveTarget archive;
+			Target archive;
 			String archive_name;
+			String archive_path;
 
 			if (custom_archive_name == null) {
 				archive_name = toArchiveName();
 			} else {
 				archive_name = custom_archive_name;
 			}
-			archive = new ArchiveTarget(archive_name, object_names);
-			addTarget(archive);
+			archive_path = toOutPath(archive_name);
+			if (shared_libraries) {
+				archive = new SharedLibraryTarget(archive_path,
+								  object_names,
+								  all_c);
+			} else {
+				archive = createArchive(archive_path,
+							combine ?
+							subdir_archives : null);
+			}
+			archive.setResponseFile(archive_response_file);
+			targets.add(archive);
+			if (root.getOutputRoot() != null) {
+				/* even an empty archive needs the directory */
+				addOrder(archive.getName(),
+					 MakeFormatter.genUseVar(OUT_DIR_VAR));
+			}
 
 			archives.add(archive_name);
 		}
@@ -445,7 +951,7 @@ public class Makefile
 		for (String subdir_name : subdir_names) {
 			File subdir = new File(build_dir, subdir_name);
 			if (subdir.isDirectory()) {
-				addSubdir(new Makefile(subdir, root));
+				addSubdir(createSubdir(subdir));
 			} else {
 				throw new NotDirectoryException(subdir);
 			}
@@ -454,6 +960,19 @@ public class Makefile
 		return populateAfterSubdirsAdded();
 	}
 
+	/**
+	 * Check if populateFull populates a subdirectory,
+	 * which it does for all but the include folder,
+	 * and the directories written by the builds.
+	 * @param subdir	the subdirectory
+	 * @return		true iff subdir is populated
+	 */
+	protected boolean isPopulated(File subdir)
+	{
+		return !Mainfile.INCLUDE_NAME.equals(subdir.getName()) &&
+		       !root.isOutputDir(subdir);
+	}
+
 	/**
 	 * Populate with the given source files,
 	 * an archive that will be generated from the source files,
@@ -467,11 +986,14 @@ public class Makefile
 	 */
 	public List<String> populateFull() throws IOException
 	{
-		File[] subfiles = build_dir.listFiles();
-		for (File subfile : subfiles) {
-			if (subfile.isDirectory() &&
-			   !Mainfile.INCLUDE_NAME.equals(subfile.getName())) {
-				addSubdir(new Makefile(subfile, root));
+		ScanCache.Listing listing = root.getScanCache().list(build_dir);
+		File[] subfiles = listing.getFiles();
+		for (int subfile_i = 0; subfile_i < subfiles.length;
+		     subfile_i++) {
+			File subfile = subfiles[subfile_i];
+			if (listing.isDirectory(subfile_i) &&
+			    isPopulated(subfile)) {
+				addSubdir(createSubdir(subfile));
 			}
 		}
 
@@ -500,14 +1022,93 @@ public class Makefile
 	}
 
 	/**
-	 * Generate the Makefile, and those of the subdirectories
-	 * @throws IOException	if there was an error in writing the Makefiles
+	 * Generate the Makefile, and those of the subdirectories.
+	 * Each Makefile is rendered into a buffer from the pipeline,
+	 * and written by the pipeline's writers
+	 * while the next one is being rendered.
+	 * @param batch		the pipeline batch that writes the Makefiles
+	 * @throws IOException	if there was an error in rendering
+	 *			the Makefiles
 	 */
-	protected void generate() throws IOException
+	protected void
+	generate(GenerationPipeline.Batch batch) throws IOException
+	{
+		String from_root = root.findSubPath(this);
+		GenerationPipeline.RenderBuffer buffer;
+		boolean submitted = false;
+
+		/* Check the targets before taking a buffer */
+		for (Target target : targets) {
+			String pool = target.getPool();
+
+			if (pool != null && !root.hasPool(pool)) {
+				throw new IOException(String
+						      .format(UNKNOWN_POOL_FMT,
+							      target.getName(),
+							      pool));
+			}
+		}
+
+		buffer = batch.takeBuffer();
+		try {
+			genMakefile(new MakeFormatter(buffer));
+			batch.submit(from_root + MAKEFILE_NAME, buffer);
+			submitted = true;
+		} finally {
+			if (!submitted) {
+				batch.returnBuffer(buffer);
+			}
+		}
+
+		/* Write unity sources */
+		for (Map.Entry<String, List<String>> unity_source :
+		     unity_sources.entrySet()) {
+			GenerationPipeline.RenderBuffer
+			unity_buffer = batch.takeBuffer();
+			FileFormatter
+			unity_output = new FileFormatter(unity_buffer);
+
+			submitted = false;
+			try {
+				for (String source_name :
+				     unity_source.getValue()) {
+					unity_output
+					.write(String.format(UNITY_INCLUDE,
+							     source_name));
+					unity_output.newLine();
+				}
+				unity_output.close();
+				batch.submit(from_root + unity_source.getKey(),
+					     unity_buffer);
+				submitted = true;
+			} finally {
+				if (!submitted) {
+					batch.returnBuffer(unity_buffer);
+				}
+			}
+		}
+
+		/* Write Makefiles in subdirectories */
+		for (Makefile subdir : subdirs) {
+			root.generateSubdir(subdir, batch);
+		}
+	}
+
+	/**
+	 * Render the Makefile itself.
+	 * @param output	the formatter writing into the buffer
+	 * @throws IOException	if there was an error in rendering
+	 */
+	private void genMakefile(MakeFormatter output) throws IOException
 	{
-		MakeFormatter
-		output = new MakeFormatter(new File(build_dir, MAKEFILE_NAME));
 		String to_root = root.findRelPath(this);
+		String from_root = root.findSubPath(this);
+		Target pch = root.getPrecompiledHeader();
+		/* the precompiled header used by the objects */
+		Target object_pch = shared_libraries ?
+				    root.getPicPrecompiledHeader() : pch;
+		/* the precompiled headers used here or in the subdirectories */
+		List<Target> pchs = new ArrayList<Target>();
 
 		/* Collect subdirectory names into Makefile-format list */
 		String[] subdir_names = new String[subdirs.size()];
@@ -527,9 +1128,12 @@ public class Makefile
 		String[] target_names = new String[targets.size()];
 		String targets_val;
 		int target_i = 0;
+		/* and the other files created by their recipes */
+		List<String> byproducts = new ArrayList<String>();
 
 		for (Target target : targets) {
 			target_names[target_i++] = target.getName();
+			byproducts.addAll(target.getByproducts());
 		}
 		targets_val = MakeFormatter.genList(target_names);
 
@@ -537,6 +1141,20 @@ public class Makefile
 		output.write(PHONY_DECL + subdirs_val);
 		output.newLine();
 
+		/* Find output directory before the common rules use it */
+		if (root.getOutputRoot() != null) {
+			String out_dir = MakeFormatter
+					 .genUseVar(Mainfile.BUILD_ROOT_VAR);
+
+			if (from_root.length() > 0) {
+				out_dir += File.separator +
+					   from_root.substring(0,
+							       from_root
+							       .length() - 1);
+			}
+			output.assignVar(OUT_DIR_VAR, out_dir);
+		}
+
 		/* Import common resources file */
 		String common_path = to_root + Mainfile.COMMON_NAME;
 		output.write(MakeFormatter.genList(INCLUDE_CMD, common_path));
@@ -546,10 +1164,21 @@ public class Makefile
 		/* Declare INCLUDE, if it exists */
 		if (root.hasInclude()) {
 			String include_path = to_root + Mainfile.INCLUDE_NAME;
-			output.assignVar(INCLUDE_VAR, INCLUDE_FLAG +
-						      include_path);
+			assignStaticVar(output, INCLUDE_VAR, INCLUDE_FLAG +
+							     include_path);
+		}
+		if (pch == null) {
+			assignStaticVar(output, CPPFLAGS_VAR, CPPFLAGS_VAL);
+		} else if (shared_libraries) {
+			assignStaticVar(output, CPPFLAGS_VAR,
+					PIC_PCH_CPPFLAGS_VAL);
+		} else {
+			assignStaticVar(output, CPPFLAGS_VAR, PCH_CPPFLAGS_VAL);
+		}
+		if (shared_libraries) {
+			output.appendVar(CPPFLAGS_VAR,
+					 SharedLibraryTarget.PIC_FLAG);
 		}
-		output.assignVar(CPPFLAGS_VAR, CPPFLAGS_VAL);
 
 		/* Define additional variables */
 		for (VarAssignment assignment : assignments.values()) {
@@ -557,9 +1186,9 @@ public class Makefile
 		}
 
 		/* Define SUBDIRS, OBJS and TARGETS */
-		output.assignVar(SUBDIRS_VAR, subdirs_val);
-		output.assignVar(OBJECTS_VAR, objects_val);
-		output.assignVar(TARGETS_VAR, targets_val);
+		assignStaticVar(output, SUBDIRS_VAR, subdirs_val);
+		assignStaticVar(output, OBJECTS_VAR, objects_val);
+		assignStaticVar(output, TARGETS_VAR, targets_val);
 
 		/* Define default rule */
 		writeRuleHeader(output, MAKE_ALL_RULE,
@@ -567,6 +1196,115 @@ public class Makefile
 				MakeFormatter.genUseVar(OBJECTS_VAR),
 				MakeFormatter.genUseVar(TARGETS_VAR));
 
+		/* Order subdirectories and targets */
+		for (Map.Entry<String, List<String>> order :
+		     orders.entrySet()) {
+			output.write(MakeFormatter
+				     .genList(order.getKey() + RULE_NAME_END,
+					      ORDER_ONLY_MARK,
+					      MakeFormatter
+					      .genList(toArray(order
+							       .getValue()))));
+			output.newLine();
+		}
+
+		/*
+		 * Make the files generated by subdirectories depend on them,
+		 * with empty recipes, so that make checks them again
+		 * after the subdirectories have been made.
+		 */
+		for (Map.Entry<String, String> product :
+		     subdir_products.entrySet()) {
+			output.write(MakeFormatter
+				     .genList(product.getKey() + RULE_NAME_END,
+					      product.getValue(),
+					      EMPTY_RECIPE));
+			output.newLine();
+		}
+
+		/*
+		 * Make the objects of unity sources depend on the sources
+		 * that they include, too
+		 */
+		for (Map.Entry<String, List<String>> unity_source :
+		     unity_sources.entrySet()) {
+			writeRuleHeader(output,
+					toOutPath(toObjectName(unity_source
+							       .getKey())),
+					unity_source.getValue());
+		}
+
+		/* Make the objects of batches depend on their stamps */
+		for (BatchCompileTarget batch_target : batches) {
+			batch_target.genObjectsRule(output);
+		}
+
+		/*
+		 * Compile the objects after the precompiled header,
+		 * which the subdirectories wait for,
+		 * so that they do not compile it at the same time
+		 */
+		if (pch != null) {
+			/*
+			 * The position-independent one is only compiled
+			 * if there are shared libraries,
+			 * and the other one unless they are all shared.
+			 */
+			if (!usesPrecompiledHeader(true) ||
+			    usesPrecompiledHeader(false)) {
+				pchs.add(pch);
+			}
+			if (usesPrecompiledHeader(true)) {
+				pchs.add(root.getPicPrecompiledHeader());
+			}
+			if (!object_names.isEmpty()) {
+				writeRuleHeader(output,
+						MakeFormatter
+						.genUseVar(OBJECTS_VAR),
+						object_pch.getName());
+			}
+			/* compile whole batches when the header changes */
+			for (BatchCompileTarget batch_target : batches) {
+				writeRuleHeader(output, batch_target.getName(),
+						object_pch.getName());
+			}
+			if (!subdirs.isEmpty()) {
+				String[] pch_names = new String[pchs.size()];
+				int pch_i = 0;
+
+				for (Target subdir_pch : pchs) {
+					pch_names[pch_i++] = subdir_pch
+							     .getName();
+				}
+				output.write(MakeFormatter
+					     .genList(MakeFormatter
+						      .genUseVar(SUBDIRS_VAR) +
+						      RULE_NAME_END,
+						      ORDER_ONLY_MARK,
+						      MakeFormatter
+						      .genList(pch_names)));
+				output.newLine();
+			}
+			for (Target used_pch : pchs) {
+				used_pch.genRule(output);
+				output.write(MakeFormatter
+					     .genList(OPTIONAL_INCLUDE_CMD,
+						      used_pch.getName() +
+						      Mainfile.DEPENDENCY_EXT));
+				output.newLine();
+			}
+		}
+
+		/* Create the output directory when building out of tree */
+		if (root.getOutputRoot() != null) {
+			writeRuleHeader(output, MakeFormatter
+						.genUseVar(OUT_DIR_VAR));
+			output.indent();
+			output.write(MakeFormatter.genList(MKDIR_CMD, "$@"));
+			output.unindent();
+			output.newLine();
+		}
+
 		/* Define special target rules */
 		for (Target target : targets) {
 			target.genRule(output);
@@ -576,14 +1314,14 @@ public class Makefile
 		for (Makefile subdir : subdirs) {
 			writeRuleHeader(output, subdir.getName());
 			output.indent();
-			output
-			.write(MakeFormatter
-			       .genList(MakeFormatter.genUseVar(MAKE_VAR),
-					MAKE_SWITCH_FLAG, subdir.getName()));
+			output.write(genRecursiveMake(subdir.getName()));
 			output.unindent();
 			output.newLine();
 		}
 
+		/* Define rules added by subclasses */
+		genExtraRules(output);
+
 		/* Define cleanup rule */
 		writeRuleHeader(output, MAKE_CLEAN_RULE);
 		output.indent();
@@ -593,30 +1331,156 @@ public class Makefile
 				      MakeFormatter.genUseVar(RM_FLAGS_VAR),
 				      MakeFormatter.genUseVar(OBJECTS_VAR),
 				      MakeFormatter.genUseVar(TARGETS_VAR)));
+		if (root.hasSplitDebugInfo()) {
+			/* the debug information next to the objects */
+			output.write(MakeFormatter.LIST_DELIM +
+				     MakeFormatter
+				     .genUseVar(OBJECTS_VAR + RULE_NAME_END +
+						OBJ_EXT + "=" +
+						Mainfile.SPLIT_DWARF_EXT));
+		}
+		if (!byproducts.isEmpty()) {
+			output.write(MakeFormatter.LIST_DELIM +
+				     MakeFormatter
+				     .genList(toArray(byproducts)));
+		}
 		output.newLine();
+		genExtraClean(output);
 		/*
 		 * Clean up subdirectories
 		 * if they want to be automatically cleaned.
 		 */
 		for (Makefile subdir : subdirs) {
 			if (subdir.auto_clean) {
-				output
-				.write(MakeFormatter
-				       .genList(MakeFormatter
-						.genUseVar(MAKE_VAR),
-						MAKE_SWITCH_FLAG, subdir
-								  .getName(),
-						MAKE_CLEAN_RULE));
+				output.write(genRecursiveMake(subdir.getName(),
+							      MAKE_CLEAN_RULE));
 				output.newLine();
 			}
 		}
 		output.unindent();
 		output.close();
+	}
 
-		/* Write Makefiles in subdirectories */
+	/**
+	 * Check if the objects of this directory or its subdirectories
+	 * use a precompiled header of a kind.
+	 * @param pic	the kind: does it check for the position-independent
+	 *		precompiled header, used by shared libraries?
+	 * @return	true iff there is an object using that kind
+	 */
+	boolean usesPrecompiledHeader(boolean pic)
+	{
+		if (shared_libraries == pic && !object_names.isEmpty()) {
+			return true;
+		}
 		for (Makefile subdir : subdirs) {
-			subdir.generate();
+			if (subdir.usesPrecompiledHeader(pic)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Generate rules that are not listed in TARGETS,
+	 * such as phony rules that are only run when requested.
+	 * Does nothing by default.
+	 * @param output	the output stream
+	 * @throws IOException	if writing failed
+	 */
+	protected void genExtraRules(MakeFormatter output) throws IOException
+	{
+	}
+
+	/**
+	 * Generate extra lines of the "clean" recipe,
+	 * such as ones removing files created by the extra rules.
+	 * Does nothing by default.
+	 * @param output	the output stream, indented for the recipe
+	 * @throws IOException	if writing failed
+	 */
+	protected void genExtraClean(MakeFormatter output) throws IOException
+	{
+	}
+
+	/**
+	 * Add the parts of the model that determine the generated Makefiles
+	 * of a populated directory tree to a digest,
+	 * so that identical trees can be recognized without rendering them.
+	 * Only covers the names of the targets,
+	 * so it is only meaningful for trees populated automatically,
+	 * and not for customized ones.
+	 * @param digest	the digest to update
+	 */
+	void digest(MessageDigest digest)
+	{
+		digest.update(getName().getBytes());
+		for (String object_name : object_names) {
+			digest.update((byte) MakeFormatter.LIST_DELIM);
+			digest.update(object_name.getBytes());
+		}
+		for (Target target : targets) {
+			digest.update((byte) MakeFormatter.LIST_DELIM);
+			digest.update(target.getName().getBytes());
+		}
+		for (VarAssignment assignment : assignments.values()) {
+			digest.update((byte) MakeFormatter.LIST_DELIM);
+			digest.update(assignment.name.getBytes());
+			digest.update((byte) MakeFormatter.LIST_DELIM);
+			digest.update(assignment.value.getBytes());
+		}
+		for (Map.Entry<String, List<String>> order :
+		     orders.entrySet()) {
+			digest.update((byte) MakeFormatter.LIST_DELIM);
+			digest.update(order.getKey().getBytes());
+			for (String prerequisite : order.getValue()) {
+				digest.update((byte) MakeFormatter.LIST_DELIM);
+				digest.update(prerequisite.getBytes());
+			}
+		}
+		for (String product : subdir_products.keySet()) {
+			digest.update((byte) MakeFormatter.LIST_DELIM);
+			digest.update(product.getBytes());
+		}
+		for (Map.Entry<String, List<String>> unity_source :
+		     unity_sources.entrySet()) {
+			digest.update((byte) MakeFormatter.LIST_DELIM);
+			digest.update(unity_source.getKey().getBytes());
+			for (String source_name : unity_source.getValue()) {
+				digest.update((byte) MakeFormatter.LIST_DELIM);
+				digest.update(source_name.getBytes());
+			}
+		}
+		digest.update((byte) MakeFormatter.LIST_DELIM);
+		digest.update(archive_mode.name().getBytes());
+		digest.update((byte) (archive_response_file ? 1 : 0));
+		digest.update((byte) (combine_archives ? 1 : 0));
+		digest.update((byte) (shared_libraries ? 1 : 0));
+		digest.update(Integer.toString(batch_size).getBytes());
+		digest.update((byte) (auto_clean ? 1 : 0));
+		for (Makefile subdir : subdirs) {
+			subdir.digest(digest);
+		}
+		/* mark the end of the directory */
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * @return	true iff this directory, or any of its subdirectories,
+	 *		has targets or an archive that automatic population
+	 *		would not generate
+	 */
+	boolean isCustomized()
+	{
+		if (customized) {
+			return true;
+		}
+		for (Makefile subdir : subdirs) {
+			if (subdir.isCustomized()) {
+				return true;
+			}
 		}
+		return false;
 	}
 
 	/**
@@ -626,6 +1490,7 @@ public class Makefile
 	public void setCustomArchiveName(String can)
 	{
 		custom_archive_name = can;
+		customized = true;
 	}
 
 	/**
@@ -635,6 +1500,7 @@ public class Makefile
 	public void setMakeObjectArchive(boolean moa)
 	{
 		make_object_archive = moa;
+		customized = true;
 	}
 
 	/**
@@ -645,4 +1511,108 @@ public class Makefile
 	{
 		auto_clean = ac;
 	}
+
+	/**
+	 * Set how the archive of all the object files is updated
+	 * during automatic population.
+	 * The subdirectories that are populated later keep the same mode.
+	 * Must be called before populating.
+	 * @param am	the new value for "archive_mode"
+	 */
+	public void setArchiveMode(ArchiveTarget.Mode am)
+	{
+		archive_mode = am;
+	}
+
+	/**
+	 * Set "archive_response_file" field.
+	 * The subdirectories that are populated later keep the same value.
+	 * Must be called before populating.
+	 * @param arf	the new value for "archive_response_file"
+	 */
+	public void setArchiveResponseFile(boolean arf)
+	{
+		archive_response_file = arf;
+	}
+
+	/**
+	 * Set "combine_archives" field.
+	 * The archive of this directory then has the members
+	 * of the archives of all its subdirectories,
+	 * and is the only one returned by populating,
+	 * so that a binary linking the subtree scans only one archive.
+	 * The archives of the subdirectories must have the same mode.
+	 * Must be called before populating.
+	 * @param ca	the new value for "combine_archives"
+	 */
+	public void setCombineArchives(boolean ca)
+	{
+		combine_archives = ca;
+	}
+
+	/**
+	 * Set "shared_libraries" field.
+	 * The objects are then compiled as position-independent code,
+	 * and the library is named after the directory,
+	 * with SHARED_LIB_EXT, unless it has a custom name.
+	 * The archives of the subdirectories are then never combined.
+	 * The subdirectories that are populated later keep the same value.
+	 * Must be called before populating.
+	 * @param sl	the new value for "shared_libraries"
+	 */
+	public void setSharedLibraries(boolean sl)
+	{
+		shared_libraries = sl;
+	}
+
+	/**
+	 * Set "batch_size" field.
+	 * The sources with the same extension are then grouped
+	 * into batches of up to this many sources,
+	 * and the sources of a batch that changed
+	 * are compiled by one compiler process.
+	 * The sources combined into unity sources are not batched.
+	 * The subdirectories that are populated later keep the same value.
+	 * Must be called before populating.
+	 * @param bs	the new value for "batch_size",
+	 *		or 0 to compile each source by itself
+	 */
+	public void setBatchSize(int bs)
+	{
+		batch_size = bs;
+	}
+
+	/**
+	 * Compile the sources of this directory in unity (jumbo) builds,
+	 * in which generated unity sources include the original sources
+	 * of the same language, so that shared headers are only parsed once
+	 * per unity source.
+	 * The subdirectories that are populated later keep the same settings,
+	 * unless they are excluded.
+	 * Must be called before populating.
+	 * @param max_files	the maximum number of sources
+	 *			in one unity source,
+	 *			or 0 to compile the sources one by one
+	 * @param max_bytes	the maximum total size of the sources
+	 *			in one unity source, or 0 for no limit
+	 */
+	public void setUnity(int max_files, long max_bytes)
+	{
+		unity_max_files = max_files;
+		unity_max_bytes = max_bytes;
+	}
+
+	/**
+	 * Leave a source that is not safe to include with others,
+	 * such as one defining static functions with common names,
+	 * or a subdirectory full of them, out of the unity build.
+	 * The source is compiled on its own,
+	 * and the subdirectory compiles its sources one by one.
+	 * Must be called before populating.
+	 * @param name	the name of the source or subdirectory
+	 */
+	public void excludeFromUnity(String name)
+	{
+		unity_excluded.add(name);
+	}
 }
@@ -0,0 +1,57 @@
+/**
+ * MemorySink.java
+ * Keeps generated files in memory
+ */
+package de.yjk.cgen;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Output sink that stores the files in a map from path to contents.
+ * Useful for measuring generation without disk noise,
+ * and for inspecting the output.
+ */
+public class MemorySink implements OutputSink
+{
+	/** the stored files, sorted by path */
+	private Map<String, byte[]> files;
+
+	public MemorySink()
+	{
+		files = new TreeMap<String, byte[]>();
+	}
+
+	public synchronized void write(String path, byte[] contents,
+				       int length)
+	{
+		files.put(path, Arrays.copyOf(contents, length));
+	}
+
+	/**
+	 * Get the contents of a stored file.
+	 * @param path	path of the file relative to the root directory
+	 * @return	the contents, or null if the file was not stored
+	 */
+	public synchronized byte[] get(String path)
+	{
+		return files.get(path);
+	}
+
+	/**
+	 * @return	copy of the map from path to contents,
+	 *		sorted by path
+	 */
+	public synchronized Map<String, byte[]> getFiles()
+	{
+		return new TreeMap<String, byte[]>(files);
+	}
+
+	/**
+	 * Nothing to finish, since the files stay in memory.
+	 */
+	public void close()
+	{
+	}
+}
@@ -0,0 +1,802 @@
+/**
+ * ObjectCache.java
+ * Compiler launcher that reuses objects compiled before from the same inputs
+ */
+package de.yjk.cgen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Content-addressed cache of objects, run as the launcher of compile commands.
+ * The key of an object is the digest of the compiler's identity,
+ * the arguments except for the output,
+ * and the preprocessed source,
+ * so that switching back to sources compiled before
+ * copies, or hard-links, their objects from the cache
+ * instead of compiling them again.
+ * The working directory is also part of the key,
+ * unless the debug information is made independent of it
+ * with "-fdebug-prefix-map=old=new",
+ * in which case the old prefix is replaced by the new one
+ * in the arguments and in the line markers of the preprocessed source,
+ * so that checkouts at different paths share their objects.
+ * Objects are stored atomically, so that builds can share the cache,
+ * and the least recently used ones are removed
+ * when the cache grows over its maximum size.
+ * The cache can also be shared between machines through a remote cache,
+ * which is an HTTP server such as CacheServer,
+ * from which objects missing locally are fetched with "GET url/key",
+ * and to which compiled objects are sent with "PUT url/key",
+ * with the token in OBJECT_CACHE_TOKEN, if it is set.
+ * If the remote cache is slower than the timeout, or fails,
+ * the object is compiled locally.
+ * Objects missing from both caches can also be compiled
+ * on CompileWorkers, through a CompileClient.
+ * Commands that are not simple compiles of one object,
+ * such as ones writing dependency or split debug information files,
+ * are run directly.
+ *
+ * Usage: ObjectCache dir max_bytes [--hard-link] [--remote url]
+ * [--timeout milliseconds] [--workers workers]
+ * [--workers-timeout milliseconds] compiler argument ...
+ * where workers is a list of "host:port" separated by spaces.
+ */
+public class ObjectCache
+{
+	/** the directory of the cache */
+	private File dir;
+	/** the maximum total size of the objects in the cache, in bytes */
+	private long max_bytes;
+	/** hard-link objects from the cache, instead of copying them? */
+	private boolean hard_link;
+	/** the URL of the remote cache, or null if there is none */
+	private String remote;
+	/** the timeout of the requests to the remote cache, in milliseconds */
+	private int timeout_ms;
+	/**
+	 * the token allowing to store objects in the remote cache,
+	 * or null if it does not require one
+	 */
+	private String token;
+	/**
+	 * the client compiling the objects missing from the cache
+	 * on CompileWorkers, or null to compile them locally
+	 */
+	private CompileClient client;
+
+	/** option to hard-link objects from the cache */
+	public static final String HARD_LINK_OPT = "--hard-link";
+	/** option before the URL of the remote cache */
+	public static final String REMOTE_OPT = "--remote";
+	/** option before the timeout of the remote cache, in milliseconds */
+	public static final String TIMEOUT_OPT = "--timeout";
+	/** option before the CompileWorkers compiling missing objects */
+	public static final String WORKERS_OPT = "--workers";
+	/**
+	 * option before the timeout of connecting to a CompileWorker,
+	 * in milliseconds
+	 */
+	public static final String WORKERS_TIMEOUT_OPT = "--workers-timeout";
+	/**
+	 * environment variable holding the token
+	 * allowing to store objects in the remote cache
+	 */
+	public static final String TOKEN_ENV = "OBJECT_CACHE_TOKEN";
+	/** header carrying the token */
+	static final String TOKEN_HEADER = "Authorization";
+	/** start of the value of the header, before the token */
+	static final String TOKEN_PREFIX = "Bearer ";
+	/** default timeout of the remote cache, in milliseconds */
+	public static final int DEFAULT_TIMEOUT_MS = 2000;
+	/** exit status if the arguments were wrong, or the compiler failed */
+	public static final int ERROR_STATUS = 2;
+	/* compiler arguments */
+	/** flag before the output file */
+	private static final String OUTPUT_FLAG = "-o";
+	/** flag to only compile, without linking */
+	private static final String COMPILE_ONLY_FLAG = "-c";
+	/** flag to only preprocess, to the standard output */
+	private static final String PREPROCESS_FLAG = "-E";
+	/** start of the flags writing dependency files */
+	private static final String DEPENDENCY_FLAG_PREFIX = "-M";
+	/** flag writing split debug information files */
+	private static final String SPLIT_DWARF_FLAG = "-gsplit-dwarf";
+	/** start of the flag mapping paths in the debug information */
+	private static final String
+	DEBUG_PREFIX_MAP_PREFIX = "-fdebug-prefix-map=";
+	/** separator between the old and new prefixes of that flag */
+	private static final char PREFIX_MAP_SEPARATOR = '=';
+	/**
+	 * flag leaving the working directory out of the preprocessed source,
+	 * since it is mapped in the debug information
+	 */
+	private static final String
+	NO_WORKING_DIRECTORY_FLAG = "-fno-working-directory";
+	/** start of the line markers in the preprocessed source */
+	private static final String LINE_MARKER_START = "# ";
+	/** quote before the path of a file in a line marker */
+	private static final String LINE_MARKER_QUOTE = "\"";
+	/* cache entries */
+	/** number of characters of the key naming the entry's subdirectory */
+	private static final int SUBDIR_LENGTH = 2;
+	/** extension of the objects in the cache */
+	private static final String ENTRY_EXT = Makefile.OBJ_EXT;
+	/** infix of temporary files, before the process ID */
+	private static final String TEMP_INFIX = ".tmp.";
+	/**
+	 * proportion of the maximum size
+	 * down to which the cache is reduced when it is too large,
+	 * so that it is not reduced again right away
+	 */
+	private static final double EVICTION_GOAL = 0.9;
+	/** format of the eviction order of an entry, by time then path */
+	private static final String EVICTION_KEY_FMT = "%020d %s";
+	/** size of the buffer for the preprocessed source */
+	private static final int BUFFER_SIZE = 1 << 16;
+	/**
+	 * character set reading the preprocessed source,
+	 * with each byte as one character
+	 */
+	private static final Charset BYTE_CHARSET = StandardCharsets.ISO_8859_1;
+	/* remote cache */
+	/** separator between the URL of the remote cache and the key */
+	private static final String URL_SEPARATOR = "/";
+	/** method fetching an object from the remote cache */
+	private static final String GET_METHOD = "GET";
+	/** method sending an object to the remote cache */
+	private static final String PUT_METHOD = "PUT";
+
+	/**
+	 * @param d	dir
+	 * @param mb	max_bytes
+	 * @param hl	hard_link
+	 */
+	public ObjectCache(File d, long mb, boolean hl)
+	{
+		dir = d;
+		max_bytes = mb;
+		hard_link = hl;
+		remote = null;
+		timeout_ms = DEFAULT_TIMEOUT_MS;
+		token = null;
+		client = null;
+	}
+
+	/**
+	 * Set "remote" field
+	 * @param r	the new value for "remote"
+	 */
+	public void setRemote(String r)
+	{
+		remote = r;
+	}
+
+	/**
+	 * Set "timeout_ms" field
+	 * @param t	the new value for "timeout_ms"
+	 */
+	public void setTimeout(int t)
+	{
+		timeout_ms = t;
+	}
+
+	/**
+	 * Set "token" field
+	 * @param t	the new value for "token"
+	 */
+	public void setToken(String t)
+	{
+		token = t;
+	}
+
+	/**
+	 * Set "client" field
+	 * @param c	the new value for "client"
+	 */
+	public void setClient(CompileClient c)
+	{
+		client = c;
+	}
+
+	/**
+	 * Run a command, with the standard streams of this process.
+	 * @param command	the command and its arguments
+	 * @return		the exit status of the command
+	 */
+	static int runCommand(List<String> command)
+	{
+		try {
+			return new ProcessBuilder(command).inheritIO().start()
+			       .waitFor();
+		} catch (IOException ioe) {
+			System.err.println(ioe);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		return ERROR_STATUS;
+	}
+
+	/**
+	 * Find the output file of a compile command that can be cached
+	 * or distributed, which compiles one object and no other files.
+	 * @param command	the command and its arguments
+	 * @return		the index of the output file in command,
+	 *			or -1 if the command cannot be cached
+	 */
+	static int findOutput(List<String> command)
+	{
+		int output_i = -1;
+		boolean compile_only = false;
+
+		for (int arg_i = 1; arg_i < command.size(); arg_i++) {
+			String arg = command.get(arg_i);
+
+			if (OUTPUT_FLAG.equals(arg) &&
+			    arg_i + 1 < command.size()) {
+				output_i = ++arg_i;
+			} else if (COMPILE_ONLY_FLAG.equals(arg)) {
+				compile_only = true;
+			} else if (arg.startsWith(DEPENDENCY_FLAG_PREFIX) ||
+				   SPLIT_DWARF_FLAG.equals(arg)) {
+				/* writes files that are not cached */
+				return -1;
+			}
+		}
+		return compile_only ? output_i : -1;
+	}
+
+	/**
+	 * Find the program of the compiler,
+	 * searching the PATH if it is not a path.
+	 * @param name	the name or path of the compiler
+	 * @return	the program, or null if it was not found
+	 */
+	private static File findProgram(String name)
+	{
+		String path = System.getenv("PATH");
+
+		if (name.indexOf(File.separatorChar) >= 0 || path == null) {
+			File program = new File(name);
+
+			return program.isFile() ? program : null;
+		}
+		for (String path_dir : path.split(File.pathSeparator)) {
+			File program = new File(path_dir, name);
+
+			if (program.isFile() && program.canExecute()) {
+				return program;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Add a string to a digest, followed by a separator.
+	 * @param digest	the digest to update
+	 * @param value		the string to add
+	 */
+	private static void update(MessageDigest digest, String value)
+	{
+		digest.update(value.getBytes());
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * Find the prefix mapped in the debug information by a command.
+	 * @param command	the command and its arguments
+	 * @return		the old and new prefixes of the last mapping,
+	 *			or null if there is none
+	 */
+	private static String[] findPrefixMap(List<String> command)
+	{
+		String[] prefix_map = null;
+
+		for (String arg : command) {
+			int separator_i;
+
+			if (!arg.startsWith(DEBUG_PREFIX_MAP_PREFIX)) {
+				continue;
+			}
+			separator_i = arg.indexOf(PREFIX_MAP_SEPARATOR,
+						  DEBUG_PREFIX_MAP_PREFIX
+						  .length());
+			if (separator_i > DEBUG_PREFIX_MAP_PREFIX.length()) {
+				prefix_map = new String[] {
+					arg.substring(DEBUG_PREFIX_MAP_PREFIX
+						      .length(), separator_i),
+					arg.substring(separator_i + 1)
+				};
+			}
+		}
+		return prefix_map;
+	}
+
+	/**
+	 * Find the key of the object compiled by a command.
+	 * @param command	the command and its arguments
+	 * @param output_i	the index of the output file in command
+	 * @return		the key, or null if the source
+	 *			could not be preprocessed
+	 * @throws IOException	if the compiler could not be found or run
+	 */
+	private static String findKey(List<String> command,
+				      int output_i) throws IOException
+	{
+		MessageDigest digest = Workspace.createDigest();
+		File compiler = findProgram(command.get(0));
+		List<String> preprocess = new ArrayList<String>();
+		String[] prefix_map = findPrefixMap(command);
+		Process process;
+		InputStreamReader reader;
+		BufferedReader preprocessed;
+		String line;
+
+		if (compiler == null) {
+			throw new IOException("Compiler " + command.get(0) +
+					      " not found.");
+		}
+		/* the compiler, as installed */
+		compiler = compiler.getCanonicalFile();
+		update(digest, compiler.getPath());
+		update(digest, Long.toString(compiler.length()));
+		update(digest, Long.toString(compiler.lastModified()));
+
+		/* the arguments, and the command preprocessing the source */
+		for (int arg_i = 0; arg_i < command.size(); arg_i++) {
+			String arg = command.get(arg_i);
+
+			if (arg_i == output_i - 1 || arg_i == output_i) {
+				continue;
+			}
+			if (prefix_map == null) {
+				update(digest, arg);
+			} else {
+				update(digest, arg.replace(prefix_map[0],
+							   prefix_map[1]));
+			}
+			if (!COMPILE_ONLY_FLAG.equals(arg)) {
+				preprocess.add(arg);
+			}
+		}
+		preprocess.add(PREPROCESS_FLAG);
+		if (prefix_map == null) {
+			update(digest, new File("").getAbsolutePath());
+		} else {
+			preprocess.add(NO_WORKING_DIRECTORY_FLAG);
+		}
+
+		/*
+		 * the preprocessed source,
+		 * read as single bytes so that it is digested unchanged,
+		 * except for the mapped prefix in the line markers
+		 */
+		process = new ProcessBuilder(preprocess)
+			  .redirectError(ProcessBuilder.Redirect.DISCARD)
+			  .start();
+		reader = new InputStreamReader(process.getInputStream(),
+					       BYTE_CHARSET);
+		preprocessed = new BufferedReader(reader, BUFFER_SIZE);
+		try {
+			while ((line = preprocessed.readLine()) != null) {
+				if (prefix_map != null &&
+				    line.startsWith(LINE_MARKER_START)) {
+					line = line.replace(LINE_MARKER_QUOTE +
+							    prefix_map[0],
+							    LINE_MARKER_QUOTE +
+							    prefix_map[1]);
+				}
+				digest.update(line.getBytes(BYTE_CHARSET));
+				digest.update((byte) '\n');
+			}
+		} finally {
+			preprocessed.close();
+		}
+		try {
+			if (process.waitFor() != 0) {
+				return null;
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		return Workspace.toHex(digest.digest());
+	}
+
+	/**
+	 * Find the file of a cache entry.
+	 * @param key	the key of the entry
+	 * @return	the file
+	 */
+	File toEntry(String key)
+	{
+		return new File(new File(dir, key.substring(0, SUBDIR_LENGTH)),
+				key + ENTRY_EXT);
+	}
+
+	/**
+	 * Find a temporary file next to a file,
+	 * which is unique to this process.
+	 * @param file	the file
+	 * @return	the temporary file
+	 */
+	static File toTemp(File file)
+	{
+		return new File(file.getPath() + TEMP_INFIX +
+				ProcessHandle.current().pid());
+	}
+
+	/**
+	 * Copy a file, replacing the destination atomically.
+	 * The copy has the current modification time.
+	 * @param from		the file to copy
+	 * @param to		the destination
+	 * @throws IOException	if copying failed
+	 */
+	private static void copyAtomically(File from,
+					   File to) throws IOException
+	{
+		File temp = toTemp(to);
+
+		try {
+			Files.copy(from.toPath(), temp.toPath(),
+				   StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temp.toPath(), to.toPath(),
+				   StandardCopyOption.ATOMIC_MOVE,
+				   StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Copy, or hard-link, an object from the cache,
+	 * marking it as used.
+	 * The object gets the current modification time,
+	 * so that make sees that it is newer than its sources.
+	 * @param entry		the object in the cache
+	 * @param output	where to put the object
+	 * @throws IOException	if the object could not be put there
+	 */
+	private void restore(File entry, File output) throws IOException
+	{
+		entry.setLastModified(System.currentTimeMillis());
+		if (hard_link) {
+			File temp = toTemp(output);
+
+			try {
+				Files.deleteIfExists(temp.toPath());
+				Files.createLink(temp.toPath(), entry.toPath());
+				Files.move(temp.toPath(), output.toPath(),
+					   StandardCopyOption.ATOMIC_MOVE,
+					   StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				temp.delete();
+			}
+		} else {
+			copyAtomically(entry, output);
+		}
+	}
+
+	/**
+	 * Store an object in the cache atomically,
+	 * and remove the least recently used ones if it grew too large.
+	 * @param object	the object to store
+	 * @param key		the key of the object
+	 * @throws IOException	if the object could not be stored
+	 */
+	void store(File object, String key) throws IOException
+	{
+		File entry = toEntry(key);
+
+		entry.getParentFile().mkdirs();
+		copyAtomically(object, entry);
+		evict();
+	}
+
+	/**
+	 * Open a request to the remote cache.
+	 * @param key		the key of the object requested
+	 * @param method	the method of the request
+	 * @return		the request
+	 * @throws IOException	if the request could not be opened
+	 */
+	private HttpURLConnection openRemote(String key,
+					     String method) throws IOException
+	{
+		HttpURLConnection
+		connection = (HttpURLConnection) new URL(remote +
+							 URL_SEPARATOR + key)
+			     .openConnection();
+
+		connection.setConnectTimeout(timeout_ms);
+		connection.setReadTimeout(timeout_ms);
+		connection.setRequestMethod(method);
+		return connection;
+	}
+
+	/**
+	 * Fetch an object from the remote cache into the local cache.
+	 * @param key	the key of the object
+	 * @return	true iff the object was fetched
+	 */
+	private boolean fetch(String key)
+	{
+		File entry = toEntry(key);
+		File temp = toTemp(entry);
+
+		try {
+			HttpURLConnection connection = openRemote(key,
+								  GET_METHOD);
+
+			try {
+				if (connection.getResponseCode() !=
+				    HttpURLConnection.HTTP_OK) {
+					return false;
+				}
+				entry.getParentFile().mkdirs();
+				Files.copy(connection.getInputStream(),
+					   temp.toPath(),
+					   StandardCopyOption
+					   .REPLACE_EXISTING);
+				Files.move(temp.toPath(), entry.toPath(),
+					   StandardCopyOption.ATOMIC_MOVE,
+					   StandardCopyOption
+					   .REPLACE_EXISTING);
+			} finally {
+				connection.disconnect();
+			}
+			evict();
+			return true;
+		} catch (IOException ioe) {
+			/* compile it locally instead */
+			return false;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Send an object to the remote cache, ignoring failures.
+	 * @param object	the object to send
+	 * @param key		the key of the object
+	 */
+	private void send(File object, String key)
+	{
+		try {
+			HttpURLConnection connection = openRemote(key,
+								  PUT_METHOD);
+
+			long length = object.length();
+
+			try {
+				OutputStream body;
+
+				if (token != null) {
+					connection
+					.setRequestProperty(TOKEN_HEADER,
+							    TOKEN_PREFIX +
+							    token);
+				}
+				connection.setDoOutput(true);
+				connection.setFixedLengthStreamingMode(length);
+				body = connection.getOutputStream();
+				try {
+					Files.copy(object.toPath(), body);
+				} finally {
+					body.close();
+				}
+				connection.getResponseCode();
+			} finally {
+				connection.disconnect();
+			}
+		} catch (IOException ioe) {
+			/* others will compile it themselves */
+		}
+	}
+
+	/**
+	 * Remove the least recently used objects from the cache
+	 * while it is over its maximum size.
+	 */
+	private void evict()
+	{
+		Map<String, File> entries = new TreeMap<String, File>();
+		File[] subdirs = dir.listFiles();
+		long total_bytes = 0;
+		long goal_bytes = (long) (max_bytes * EVICTION_GOAL);
+
+		if (subdirs == null) {
+			return;
+		}
+		for (File subdir : subdirs) {
+			File[] subdir_entries = subdir.listFiles();
+
+			if (subdir_entries == null) {
+				continue;
+			}
+			for (File entry : subdir_entries) {
+				total_bytes += entry.length();
+				entries.put(String.format(EVICTION_KEY_FMT,
+							  entry.lastModified(),
+							  entry.getPath()),
+					    entry);
+			}
+		}
+		if (total_bytes <= max_bytes) {
+			return;
+		}
+		for (File entry : entries.values()) {
+			if (total_bytes <= goal_bytes) {
+				break;
+			}
+			long entry_bytes = entry.length();
+
+			/* another build may have removed it already */
+			if (entry.delete()) {
+				total_bytes -= entry_bytes;
+			}
+		}
+	}
+
+	/**
+	 * Run a compile command, reusing the object from the cache if it is
+	 * there, or compiling and storing it if it is not.
+	 * Failing to use the cache does not fail the command.
+	 * @param command	the command and its arguments
+	 * @return		the exit status of the command
+	 */
+	public int run(List<String> command)
+	{
+		int output_i = findOutput(command);
+		String key;
+		File entry;
+		File output;
+		File temp;
+		List<String> compile;
+		int status;
+
+		if (output_i < 0) {
+			return runCommand(command);
+		}
+		try {
+			key = findKey(command, output_i);
+		} catch (IOException ioe) {
+			System.err.println(ioe);
+			return ERROR_STATUS;
+		}
+		if (key == null) {
+			/* let the compiler report the error */
+			return runCommand(command);
+		}
+		entry = toEntry(key);
+		output = new File(command.get(output_i));
+		if (entry.isFile() || (remote != null && fetch(key))) {
+			try {
+				restore(entry, output);
+				return 0;
+			} catch (IOException ioe) {
+				/* compile it instead */
+			}
+		}
+
+		/* compile next to the output, and replace it at the end */
+		temp = toTemp(output);
+		compile = new ArrayList<String>(command);
+		compile.set(output_i, temp.getPath());
+		if (client == null) {
+			status = runCommand(compile);
+		} else {
+			status = client.run(compile);
+		}
+		if (status != 0) {
+			temp.delete();
+			return status;
+		}
+		try {
+			store(temp, key);
+		} catch (IOException ioe) {
+			/* the object is still usable */
+		}
+		if (remote != null) {
+			send(temp, key);
+		}
+		try {
+			Files.move(temp.toPath(), output.toPath(),
+				   StandardCopyOption.ATOMIC_MOVE,
+				   StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ioe) {
+			System.err.println(ioe);
+			temp.delete();
+			return ERROR_STATUS;
+		}
+		return 0;
+	}
+
+	public static void main(String[] args)
+	{
+		int command_start = 2;
+		boolean hard_link = false;
+		String remote = null;
+		int timeout_ms = DEFAULT_TIMEOUT_MS;
+		String workers = null;
+		int workers_timeout_ms = DEFAULT_TIMEOUT_MS;
+		ObjectCache cache;
+		CompileClient client = null;
+
+		try {
+			while (args.length > command_start + 1 &&
+			       args[command_start].startsWith("--")) {
+				String option = args[command_start++];
+				String value = args[command_start];
+
+				if (HARD_LINK_OPT.equals(option)) {
+					hard_link = true;
+					continue;
+				}
+				if (REMOTE_OPT.equals(option)) {
+					remote = value;
+				} else if (TIMEOUT_OPT.equals(option)) {
+					timeout_ms = Integer.parseInt(value);
+				} else if (WORKERS_OPT.equals(option)) {
+					workers = value;
+				} else if (WORKERS_TIMEOUT_OPT
+					   .equals(option)) {
+					workers_timeout_ms = Integer
+							     .parseInt(value);
+				} else {
+					throw new
+					IllegalArgumentException(option);
+				}
+				command_start++;
+			}
+			if (args.length <= command_start) {
+				throw new IllegalArgumentException();
+			}
+			cache = new ObjectCache(new File(args[0]),
+						Long.parseLong(args[1]),
+						hard_link);
+			if (workers != null) {
+				client = new
+				CompileClient(CompileClient
+					      .parseWorkers(workers),
+					      workers_timeout_ms);
+			}
+		} catch (IllegalArgumentException iae) {
+			/* also catches NumberFormatException */
+			System.err.println("Usage: ObjectCache dir max_bytes " +
+					   "[" + HARD_LINK_OPT + "] " +
+					   "[" + REMOTE_OPT + " url] " +
+					   "[" + TIMEOUT_OPT +
+					   " milliseconds] " +
+					   "[" + WORKERS_OPT + " workers] " +
+					   "[" + WORKERS_TIMEOUT_OPT +
+					   " milliseconds] " +
+					   "compiler argument ...");
+			System.exit(ERROR_STATUS);
+			return;
+		}
+		cache.setRemote(remote);
+		cache.setTimeout(timeout_ms);
+		cache.setToken(System.getenv(TOKEN_ENV));
+		cache.setClient(client);
+
+		System.exit(cache.run(Arrays.asList(args)
+				      .subList(command_start, args.length)));
+	}
+}
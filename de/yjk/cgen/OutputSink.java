@@ -0,0 +1,38 @@
+/**
+ * OutputSink.java
+ * Destination for the generated files of a project
+ */
+package de.yjk.cgen;
+
+import java.io.IOException;
+
+/**
+ * Receives the contents of the generated files,
+ * named by their paths relative to the root directory of the project.
+ * The generation pipeline writes from several threads at once,
+ * so implementations must be thread-safe.
+ */
+public interface OutputSink
+{
+	/** separator between path segments, regardless of the platform */
+	public static final char PATH_SEPARATOR = '/';
+
+	/**
+	 * Store the contents of a generated file.
+	 * The contents array is reused after this returns,
+	 * so it must be copied if it is kept.
+	 * @param path		path of the file relative to the root
+	 *			directory, separated by PATH_SEPARATOR
+	 * @param contents	array containing the contents
+	 * @param length	number of bytes of contents to store
+	 * @throws IOException	if the contents could not be stored
+	 */
+	void write(String path, byte[] contents, int length) throws IOException;
+
+	/**
+	 * Finish storing files.
+	 * Called by the owner of the sink, after generation is complete.
+	 * @throws IOException	if the stored files could not be completed
+	 */
+	void close() throws IOException;
+}
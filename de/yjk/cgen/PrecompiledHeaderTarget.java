@@ -0,0 +1,110 @@
+/**
+ * PrecompiledHeaderTarget.java
+ * Precompiled header
+ */
+package de.yjk.cgen;
+
+import java.io.IOException;
+
+/**
+ * Precompiled header target, compiled from a header in the include directory,
+ * which the compiler uses instead of parsing the header for every object.
+ * Also writes the headers that it includes into a dependency file,
+ * so that it is compiled again when any of them changes.
+ */
+public class PrecompiledHeaderTarget extends Target
+{
+	/** is the header compiled as C++? */
+	private boolean cpp;
+	/**
+	 * is the header compiled as position-independent code,
+	 * for the objects of shared libraries?
+	 */
+	private boolean pic;
+
+	/** flag before the language of the header */
+	private static final String LANGUAGE_FLAG = "-x";
+	/** language of C headers */
+	private static final String C_HEADER_LANGUAGE = "c-header";
+	/** language of C++ headers */
+	private static final String CPP_HEADER_LANGUAGE = "c++-header";
+	/**
+	 * flags writing the included headers, except the system headers,
+	 * into a dependency file next to the target,
+	 * with an empty rule for each header,
+	 * so that removing a header does not break the build
+	 */
+	private static final String DEPENDENCY_FLAGS = "-MMD -MP -MF $@.d";
+	/** flags to only compile into the target */
+	private static final String COMPILE_FLAGS = "-c -o $@ $<";
+	/** command to create the directory of the target */
+	private static final String MKDIR_CMD = "mkdir -p $(@D)";
+
+	/**
+	 * Calls corresponding superconstructor in Target,
+	 * and records the language of the header,
+	 * and if it is position-independent
+	 * @param n	n in superconstructor
+	 * @param h	the header, which is the only dependency
+	 * @param c	cpp
+	 * @param p	pic
+	 */
+	public PrecompiledHeaderTarget(String n, String h, boolean c,
+				       boolean p)
+	{
+		super(n, h);
+		cpp = c;
+		pic = p;
+	}
+
+	/**
+	 * Constructor of a header that is not position-independent
+	 * @param n	n in superconstructor
+	 * @param h	the header, which is the only dependency
+	 * @param c	cpp
+	 */
+	public PrecompiledHeaderTarget(String n, String h, boolean c)
+	{
+		this(n, h, c, false);
+	}
+
+	/**
+	 * Returns if the header is compiled as C++
+	 * @return cpp
+	 */
+	public boolean isCpp()
+	{
+		return cpp;
+	}
+
+	protected void genCommand(MakeFormatter output) throws IOException
+	{
+		/*
+		 * Compile without the precompiled header flags,
+		 * but with the flags that must match the objects
+		 */
+		String compiler_var = cpp ? Makefile.CPP_VAR : Makefile.CC_VAR;
+		String flags_var = cpp ? Makefile.CXXFLAGS_VAR :
+					 Makefile.CFLAGS_VAR;
+		String cppflags = MakeFormatter
+				  .genUseVar(Makefile.STATIC_CPPFLAGS_VAR);
+		String command;
+
+		if (pic) {
+			cppflags = MakeFormatter
+				   .genList(cppflags,
+					    SharedLibraryTarget.PIC_FLAG);
+		}
+		command = MakeFormatter
+			  .genList(MakeFormatter.genUseVar(compiler_var),
+				   MakeFormatter.genUseVar(flags_var),
+				   cppflags, LANGUAGE_FLAG,
+				   cpp ? CPP_HEADER_LANGUAGE :
+					 C_HEADER_LANGUAGE,
+				   DEPENDENCY_FLAGS, COMPILE_FLAGS);
+
+		output.write(MKDIR_CMD);
+		output.newLine();
+		output.write(command);
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ * ScanCache.java
+ * Remembers directory listings between populations of a project
+ */
+package de.yjk.cgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of directory listings, keyed by the canonical path of the directory.
+ * A listing is reused as long as the modification time of the directory
+ * is the same as when it was listed,
+ * since adding, removing or renaming an entry changes that time.
+ * Editing the contents of a file does not,
+ * but that does not affect the generated Makefiles either.
+ */
+public class ScanCache
+{
+	/** listings, keyed by canonical path of the directory */
+	private Map<String, Listing> listings;
+	/** number of directories actually listed */
+	private AtomicLong scans;
+	/** number of listings reused from the cache */
+	private AtomicLong hits;
+
+	/**
+	 * Entries of a directory, as of one modification time
+	 */
+	public static class Listing
+	{
+		/** modification time of the directory, in nanoseconds */
+		private long mtime;
+		/** the entries of the directory */
+		private File[] files;
+		/** which of the entries are directories */
+		private boolean[] directories;
+
+		/**
+		 * List a directory.
+		 * @param dir		the directory to list
+		 * @param m		mtime, read before listing
+		 * @throws IOException	if the directory could not be listed
+		 */
+		private Listing(File dir, long m) throws IOException
+		{
+			mtime = m;
+			files = dir.listFiles();
+			if (files == null) {
+				throw new Makefile.NotDirectoryException(dir);
+			}
+			directories = new boolean[files.length];
+			for (int file_i = 0; file_i < files.length; file_i++) {
+				directories[file_i] = files[file_i]
+						      .isDirectory();
+			}
+		}
+
+		/**
+		 * @return	the entries of the directory
+		 */
+		public File[] getFiles()
+		{
+			return files;
+		}
+
+		/**
+		 * @param file_i	index of an entry in getFiles()
+		 * @return		true iff that entry is a directory
+		 */
+		public boolean isDirectory(int file_i)
+		{
+			return directories[file_i];
+		}
+	}
+
+	public ScanCache()
+	{
+		listings = new ConcurrentHashMap<String, Listing>();
+		scans = new AtomicLong();
+		hits = new AtomicLong();
+	}
+
+	/**
+	 * Get the modification time of a directory.
+	 * @param dir		the directory
+	 * @return		the modification time, in nanoseconds
+	 * @throws IOException	if the directory does not exist
+	 */
+	private static long getMtime(File dir) throws IOException
+	{
+		return Files.getLastModifiedTime(dir.toPath())
+		       .to(TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Get the listing of a directory,
+	 * from the cache if the directory has not changed since.
+	 * @param dir		the canonical directory to list
+	 * @return		the listing
+	 * @throws IOException	if the directory could not be listed
+	 */
+	public Listing list(File dir) throws IOException
+	{
+		String key = dir.getPath();
+		long mtime = getMtime(dir);
+		Listing listing = listings.get(key);
+
+		if (listing != null && listing.mtime == mtime) {
+			hits.incrementAndGet();
+			return listing;
+		}
+
+		listing = new Listing(dir, mtime);
+		listings.put(key, listing);
+		scans.incrementAndGet();
+		return listing;
+	}
+
+	/**
+	 * Check if any of the listed directories changed,
+	 * and forget the ones that no longer exist.
+	 * @return		true iff any directory changed or disappeared
+	 * @throws IOException	if a modification time could not be read
+	 */
+	public boolean hasChanged() throws IOException
+	{
+		Iterator<Map.Entry<String, Listing>>
+		entry_iter = listings.entrySet().iterator();
+		boolean changed = false;
+
+		while (entry_iter.hasNext()) {
+			Map.Entry<String, Listing> entry = entry_iter.next();
+
+			try {
+				if (getMtime(new File(entry.getKey())) !=
+				    entry.getValue().mtime) {
+					changed = true;
+				}
+			} catch (NoSuchFileException nsfe) {
+				entry_iter.remove();
+				changed = true;
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * @return	number of directories in the cache
+	 */
+	public int size()
+	{
+		return listings.size();
+	}
+
+	/**
+	 * @return	number of directories actually listed
+	 */
+	public long getScans()
+	{
+		return scans.get();
+	}
+
+	/**
+	 * @return	number of listings reused from the cache
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * SharedLibraryTarget.java
+ * Shared library
+ */
+package de.yjk.cgen;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Shared library target and its dependencies,
+ * which are object files compiled as position-independent code,
+ * so that changing the library does not relink the binaries using it.
+ */
+public class SharedLibraryTarget extends Target
+{
+	/** are all dependencies generated with the C compiler? */
+	private boolean all_c;
+	/**
+	 * the name under which binaries linked with the library load it,
+	 * or null for the name of the library file.
+	 * null by default
+	 */
+	private String soname;
+
+	/** compiler flag generating position-independent code */
+	public static final String PIC_FLAG = "-fPIC";
+	/** linker flag creating a shared library */
+	private static final String SHARED_FLAG = "-shared";
+	/** linker flag before the name under which the library is loaded */
+	private static final String SONAME_FLAG = "-Wl,-soname,";
+	/** the name of the library file, without its directory */
+	private static final String FILE_NAME = "$(notdir " + OUT_VAR + ")";
+
+	/**
+	 * Calls Target(String, Collection<String>) superconstructor,
+	 * and records if the target is all C source code
+	 * @param n	n in superconstructor
+	 * @param ds	ds in superconstructor
+	 * @param ac	all_c
+	 */
+	public SharedLibraryTarget(String n, Collection<String> ds, boolean ac)
+	{
+		super(n, ds);
+		all_c = ac;
+		soname = null;
+	}
+
+	/**
+	 * Set "soname" field
+	 * @param s	the new value for "soname"
+	 */
+	public void setSoname(String s)
+	{
+		soname = s;
+	}
+
+	protected void genCommand(MakeFormatter output) throws IOException
+	{
+		/* Decide on which compiler to use */
+		String command_var = all_c ? Makefile.CC_VAR : Makefile.CPP_VAR;
+		String
+		command = MakeFormatter
+			  .genList(MakeFormatter.genUseVar(command_var),
+				   MakeFormatter.genUseVar(Makefile
+							   .LDFLAGS_VAR),
+				   SHARED_FLAG,
+				   SONAME_FLAG + (soname == null ? FILE_NAME :
+								   soname),
+				   OUTPUT_FLAG, OUT_VAR,
+				   genInputs(ALL_IN_VAR),
+				   MakeFormatter.genUseVar(Makefile
+							   .LDLIBS_VAR));
+		output.write(command);
+	}
+}
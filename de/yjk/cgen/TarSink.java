@@ -0,0 +1,179 @@
+/**
+ * TarSink.java
+ * Writes generated files into a single tar stream
+ */
+package de.yjk.cgen;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Output sink that writes each file as an entry of a POSIX ustar archive,
+ * so that all the generated files can be shipped as one artifact.
+ * Entries appear in the order in which the writers finish them.
+ */
+public class TarSink implements OutputSink
+{
+	/** size of a tar block, in which headers and contents are padded */
+	private static final int BLOCK_SIZE = 512;
+	/** number of empty blocks that end the archive */
+	private static final int END_BLOCKS = 2;
+	/* header field offsets and lengths */
+	/** offset of the name field */
+	private static final int NAME_OFF = 0;
+	/** length of the name field */
+	private static final int NAME_LEN = 100;
+	/** offset of the mode field */
+	private static final int MODE_OFF = 100;
+	/** offset of the user ID field */
+	private static final int UID_OFF = 108;
+	/** offset of the group ID field */
+	private static final int GID_OFF = 116;
+	/** length of the mode and ID fields */
+	private static final int ID_LEN = 8;
+	/** offset of the size field */
+	private static final int SIZE_OFF = 124;
+	/** offset of the modification time field */
+	private static final int MTIME_OFF = 136;
+	/** length of the size and modification time fields */
+	private static final int NUMBER_LEN = 12;
+	/** offset of the checksum field */
+	private static final int CHECKSUM_OFF = 148;
+	/** length of the checksum field */
+	private static final int CHECKSUM_LEN = 8;
+	/** offset of the entry type */
+	private static final int TYPE_OFF = 156;
+	/** offset of the magic number and version */
+	private static final int MAGIC_OFF = 257;
+	/** offset of the name prefix field */
+	private static final int PREFIX_OFF = 345;
+	/** length of the name prefix field */
+	private static final int PREFIX_LEN = 155;
+	/* header field values */
+	/** type of a regular file */
+	private static final byte REGULAR_TYPE = '0';
+	/** the magic number and version of the ustar format */
+	private static final String MAGIC = "ustar\u000000";
+	/** permissions of every file */
+	private static final int FILE_MODE = 0644;
+
+	/** the stream containing the archive */
+	private OutputStream out;
+	/** the modification time of every entry, in seconds */
+	private long mtime;
+
+	/**
+	 * @param o	the stream into which to write the archive,
+	 *		which is closed along with this sink
+	 */
+	public TarSink(OutputStream o)
+	{
+		out = o;
+		mtime = System.currentTimeMillis() / 1000;
+	}
+
+	/**
+	 * Write a string into a header field.
+	 * @param header	the header block
+	 * @param off		the offset of the field
+	 * @param value		the string to write
+	 */
+	private static void putString(byte[] header, int off, String value)
+	{
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+		System.arraycopy(bytes, 0, header, off, bytes.length);
+	}
+
+	/**
+	 * Write a number into a header field, in zero-padded octal,
+	 * leaving the last byte of the field for the terminating 0.
+	 * @param header	the header block
+	 * @param off		the offset of the field
+	 * @param len		the length of the field
+	 * @param value		the number to write
+	 */
+	private static void putOctal(byte[] header, int off, int len,
+				     long value)
+	{
+		String digits = Long.toOctalString(value);
+		StringBuilder field = new StringBuilder(len - 1);
+
+		for (int pad_i = digits.length(); pad_i < len - 1; pad_i++) {
+			field.append('0');
+		}
+		field.append(digits);
+		putString(header, off, field.toString());
+	}
+
+	/**
+	 * Split the path of an entry into the name and prefix fields.
+	 * @param header	the header block
+	 * @param path		the path of the entry
+	 * @throws IOException	if the path does not fit into the fields
+	 */
+	private static void putPath(byte[] header,
+				    String path) throws IOException
+	{
+		int split;
+
+		if (path.length() <= NAME_LEN) {
+			putString(header, NAME_OFF, path);
+			return;
+		}
+
+		/* split at a separator, so that the name fits */
+		split = path.indexOf(PATH_SEPARATOR,
+				     path.length() - NAME_LEN - 1);
+		if (split < 0 || split > PREFIX_LEN) {
+			throw new IOException(path + " is too long for tar.");
+		}
+		putString(header, PREFIX_OFF, path.substring(0, split));
+		putString(header, NAME_OFF, path.substring(split + 1));
+	}
+
+	public synchronized void write(String path, byte[] contents,
+				       int length) throws IOException
+	{
+		byte[] header = new byte[BLOCK_SIZE];
+		int padding = (BLOCK_SIZE - length % BLOCK_SIZE) % BLOCK_SIZE;
+		long checksum = 0;
+
+		putPath(header, path);
+		putOctal(header, MODE_OFF, ID_LEN, FILE_MODE);
+		putOctal(header, UID_OFF, ID_LEN, 0);
+		putOctal(header, GID_OFF, ID_LEN, 0);
+		putOctal(header, SIZE_OFF, NUMBER_LEN, length);
+		putOctal(header, MTIME_OFF, NUMBER_LEN, mtime);
+		header[TYPE_OFF] = REGULAR_TYPE;
+		putString(header, MAGIC_OFF, MAGIC);
+
+		/* the checksum is calculated with the field as spaces */
+		Arrays.fill(header, CHECKSUM_OFF, CHECKSUM_OFF + CHECKSUM_LEN,
+			    (byte) ' ');
+		for (byte header_byte : header) {
+			checksum += header_byte & 0xff;
+		}
+		putOctal(header, CHECKSUM_OFF, CHECKSUM_LEN - 1, checksum);
+		header[CHECKSUM_OFF + CHECKSUM_LEN - 2] = 0;
+
+		out.write(header);
+		out.write(contents, 0, length);
+		out.write(new byte[padding]);
+	}
+
+	/**
+	 * Write the end of the archive, and close the stream.
+	 * @throws IOException	if writing or closing failed
+	 */
+	public synchronized void close() throws IOException
+	{
+		try {
+			out.write(new byte[BLOCK_SIZE * END_BLOCKS]);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -6,7 +6,9 @@
 package de.yjk.cgen;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * Abstract class to generate custom rule,
@@ -18,6 +20,37 @@ public abstract class Target
 	private String name;
 	/** files on which the rule depends */
 	private String[] dependencies;
+	/**
+	 * the pool limiting how many recipes run at the same time,
+	 * or null for none.
+	 * null by default
+	 */
+	private String pool;
+	/**
+	 * pass the dependencies in a response file,
+	 * instead of on the command line?
+	 * false by default
+	 */
+	private boolean response_file;
+
+	/** built-in variable for the output */
+	public static final String OUT_VAR = "$@";
+	/** compiler flag before the output file */
+	public static final String OUTPUT_FLAG = "-o";
+	/** built-in variable for the list of dependencies */
+	public static final String ALL_IN_VAR = "$^";
+	/** built-in variable for the list of dependencies that changed */
+	public static final String CHANGED_IN_VAR = "$?";
+	/** extension of response files, after the name of the target */
+	public static final String RESPONSE_FILE_EXT = ".rsp";
+	/**
+	 * format of an argument passing a list in a response file,
+	 * which is written by make as the recipe line is expanded,
+	 * before the line runs
+	 */
+	private static final String
+	RESPONSE_FILE_FMT = "$(file >" + OUT_VAR + RESPONSE_FILE_EXT +
+			    ",%s)@" + OUT_VAR + RESPONSE_FILE_EXT;
 
 	/**
 	 * Generic constructor for all numbers of dependencies.
@@ -28,6 +61,8 @@ public abstract class Target
 	{
 		name = n;
 		dependencies = new String[n_ds];
+		pool = null;
+		response_file = false;
 	}
 
 	/**
@@ -76,6 +111,91 @@ public abstract class Target
 		return name;
 	}
 
+	/**
+	 * Get the files on which the rule depends
+	 * @return	a copy of dependencies
+	 */
+	public String[] getDependencies()
+	{
+		return dependencies.clone();
+	}
+
+	/**
+	 * Get the pool limiting how many recipes run at the same time
+	 * @return	pool
+	 */
+	public String getPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * Run the recipe in a pool declared with Mainfile.addPool,
+	 * such as one for memory-heavy links,
+	 * so that only as many of the recipes in the pool run at the same
+	 * time as the pool's size, without limiting the other recipes.
+	 * Each line of the recipe must be a simple command.
+	 * @param p	pool, or null for none
+	 */
+	public void setPool(String p)
+	{
+		pool = p;
+	}
+
+	/**
+	 * Check if the dependencies are passed in a response file
+	 * @return	response_file
+	 */
+	public boolean usesResponseFile()
+	{
+		return response_file;
+	}
+
+	/**
+	 * Pass the dependencies in a response file,
+	 * named after the target with RESPONSE_FILE_EXT,
+	 * so that the command line has the same length
+	 * however many dependencies there are.
+	 * The file is written by make, which must be GNU make 4.0 or newer,
+	 * when the recipe runs,
+	 * and is one of the byproducts.
+	 * The command must accept "@file" arguments.
+	 * @param rf	the new value for "response_file"
+	 */
+	public void setResponseFile(boolean rf)
+	{
+		response_file = rf;
+	}
+
+	/**
+	 * Get the files created by the recipe besides the target,
+	 * which are removed by the "clean" rule of the directory
+	 * @return	the paths of the files, in a new list
+	 */
+	public List<String> getByproducts()
+	{
+		List<String> byproducts = new ArrayList<String>();
+
+		if (response_file) {
+			byproducts.add(name + RESPONSE_FILE_EXT);
+		}
+		return byproducts;
+	}
+
+	/**
+	 * Generate the argument passing a list of dependencies to the command,
+	 * in a response file if it is used
+	 * @param inputs	the list, such as ALL_IN_VAR
+	 * @return		the argument
+	 */
+	protected String genInputs(String inputs)
+	{
+		if (response_file) {
+			return String.format(RESPONSE_FILE_FMT, inputs);
+		}
+		return inputs;
+	}
+
 	/**
 	 * Generate the rule to create the target
 	 * @param output	the output stream
@@ -87,7 +207,11 @@ public abstract class Target
 		Makefile.writeRuleHeader(output, name, dependencies);
 		/* write body */
 		output.indent();
+		if (pool != null) {
+			output.setLinePrefix(Mainfile.genPoolPrefix(pool));
+		}
 		genCommand(output);
+		output.setLinePrefix("");
 		output.unindent();
 		output.newLine();
 	}
@@ -0,0 +1,42 @@
+/**
+ * UpdateSink.java
+ * Writes only the generated files that differ from the ones on disk
+ */
+package de.yjk.cgen;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Output sink that writes a generated file
+ * only if it is missing or differs from the file already on disk,
+ * and records which ones it wrote.
+ * Files that are already up to date keep their modification times,
+ * so make does not need to reread them.
+ */
+public class UpdateSink extends CheckSink
+{
+	/**
+	 * @param rd	the directory under which to write the files
+	 */
+	public UpdateSink(File rd)
+	{
+		super(rd);
+	}
+
+	/**
+	 * Write the file if it is stale.
+	 * @param path		path of the file relative to the root
+	 *			directory
+	 * @param contents	array containing the generated contents
+	 * @param length	number of bytes of generated contents
+	 * @throws IOException	if reading or writing the file failed
+	 */
+	public void write(String path, byte[] contents,
+			  int length) throws IOException
+	{
+		if (check(path, contents, length)) {
+			writeFile(path, contents, length);
+		}
+	}
+}
@@ -0,0 +1,705 @@
+/**
+ * Workspace.java
+ * Generates several project roots together,
+ * sharing their scans and rendered output
+ */
+package de.yjk.cgen;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Set of project roots that are generated together.
+ * All the roots share one ScanCache,
+ * so that a directory reached from several roots is only listed once.
+ * Roots added by directory are populated with all their subdirectories,
+ * and identified by a digest of their populated model;
+ * roots with the same digest, such as copies of the same vendored project,
+ * are rendered once, and the rendered files are reused for the others.
+ * Likewise, within such roots, each subdirectory tree is identified by
+ * the settings of its root, its path in the root, and its populated model,
+ * so that identical trees at the same path in different roots,
+ * such as a vendored library in several projects, are rendered once.
+ * Only trees populated automatically are reused;
+ * trees with custom targets or archives are always rendered.
+ * The identical trees are still scanned,
+ * since they are found to be identical from their listings.
+ * Every file is also hashed by its absolute path,
+ * so that a file generated identically through several roots
+ * is only written once,
+ * while conflicting contents for the same file are reported as errors.
+ * A root inside another root, such as a vendored project,
+ * is generated after the roots containing it,
+ * which own the files they generate;
+ * the nested root only adds the files they did not generate.
+ */
+public class Workspace
+{
+	/** algorithm of the digests of models and files */
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/**
+	 * What to do with the generated files
+	 */
+	public enum Mode
+	{
+		/** write all the files */
+		WRITE,
+		/** write only the files that are out of date */
+		UPDATE,
+		/** only list the files that are out of date */
+		CHECK
+	}
+
+	/** directory listings shared by all the roots */
+	private ScanCache scan_cache;
+	/**
+	 * the roots, keyed by canonical path,
+	 * with null models for the roots that are populated automatically
+	 */
+	private Map<String, Mainfile> roots;
+	/** rendered trees, keyed by the digest of their models */
+	private ConcurrentHashMap<String, RenderedTree> rendered;
+	/** rendered subdirectory trees, keyed by their digests */
+	private ConcurrentHashMap<String, RenderedTree> rendered_subtrees;
+	/** digests of the files already generated, keyed by absolute path */
+	private ConcurrentHashMap<String, String> generated;
+	/** the roots that failed in the last generation, with their errors */
+	private Map<File, IOException> failures;
+	/** number of roots rendered */
+	private AtomicLong rendered_roots;
+	/** number of roots whose rendered files were reused */
+	private AtomicLong reused_roots;
+	/** number of subdirectory trees rendered */
+	private AtomicLong rendered_dirs;
+	/** number of subdirectory trees whose rendered files were reused */
+	private AtomicLong reused_dirs;
+	/** number of files skipped since they were already generated */
+	private AtomicLong skipped_files;
+
+	public Workspace()
+	{
+		scan_cache = new ScanCache();
+		roots = new LinkedHashMap<String, Mainfile>();
+		rendered = new ConcurrentHashMap<String, RenderedTree>();
+		rendered_subtrees = new ConcurrentHashMap<String,
+							  RenderedTree>();
+		generated = new ConcurrentHashMap<String, String>();
+		failures = new LinkedHashMap<File, IOException>();
+		rendered_roots = new AtomicLong();
+		reused_roots = new AtomicLong();
+		rendered_dirs = new AtomicLong();
+		reused_dirs = new AtomicLong();
+		skipped_files = new AtomicLong();
+	}
+
+	/**
+	 * @return	the directory listings shared by all the roots,
+	 *		which must be passed to custom Mainfile roots
+	 */
+	public ScanCache getScanCache()
+	{
+		return scan_cache;
+	}
+
+	/**
+	 * Add a root that will be populated with all of its subdirectories.
+	 * @param dir		the root directory of the project
+	 * @return		false iff the root was already added
+	 * @throws IOException	if dir could not be canonicalized
+	 */
+	public synchronized boolean addRoot(File dir) throws IOException
+	{
+		String root_path = dir.getCanonicalPath();
+
+		if (roots.containsKey(root_path)) {
+			return false;
+		}
+		roots.put(root_path, null);
+		return true;
+	}
+
+	/**
+	 * Add a custom root, which must already be populated,
+	 * using the ScanCache from getScanCache().
+	 * Its rendered files are never reused for other roots.
+	 * @param root		the populated root
+	 * @return		false iff the root was already added
+	 * @throws IOException	if the path of root could not be found
+	 */
+	public synchronized boolean addRoot(Mainfile root) throws IOException
+	{
+		String root_path = root.getBuildPath();
+
+		if (roots.containsKey(root_path)) {
+			return false;
+		}
+		roots.put(root_path, root);
+		return true;
+	}
+
+	/**
+	 * Convert bytes to hexadecimal digits.
+	 * @param bytes	the bytes to convert
+	 * @return	the hexadecimal digits
+	 */
+	static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+		for (byte hex_byte : bytes) {
+			hex.append(String.format("%02x", hex_byte));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Create a digest.
+	 * @return		a new digest
+	 * @throws IOException	if the digest algorithm is missing
+	 */
+	static MessageDigest createDigest() throws IOException
+	{
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException(nsae);
+		}
+	}
+
+	/**
+	 * Files rendered for one root,
+	 * which other roots with the same digest wait for
+	 */
+	private static class RenderedTree
+	{
+		/** the rendered files */
+		private MemorySink files;
+		/** has the rendering finished? */
+		private boolean done;
+		/** the error in rendering, or null */
+		private IOException failure;
+
+		public RenderedTree()
+		{
+			files = new MemorySink();
+			done = false;
+			failure = null;
+		}
+
+		/**
+		 * Mark the rendering as finished.
+		 * @param f	failure
+		 */
+		public synchronized void complete(IOException f)
+		{
+			failure = f;
+			done = true;
+			notifyAll();
+		}
+
+		/**
+		 * Wait for the rendering to finish.
+		 * @return		the rendered files
+		 * @throws IOException	if the rendering failed
+		 */
+		public synchronized MemorySink await() throws IOException
+		{
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (failure != null) {
+				throw new IOException("Reused rendering failed",
+						      failure);
+			}
+			return files;
+		}
+	}
+
+	/**
+	 * Sink that skips files already generated through another root,
+	 * and passes the rest on, optionally keeping a copy
+	 */
+	private class SharedSink implements OutputSink
+	{
+		/** the root directory of the files */
+		private File root_dir;
+		/** the sink to which to pass the files */
+		private OutputSink target;
+		/** where to keep a copy of the files, or null */
+		private MemorySink copy;
+		/** is the root inside another root? */
+		private boolean nested;
+
+		/**
+		 * @param rd	root_dir
+		 * @param t	target
+		 * @param c	copy
+		 * @param n	nested
+		 */
+		public SharedSink(File rd, OutputSink t, MemorySink c,
+				  boolean n)
+		{
+			root_dir = rd;
+			target = t;
+			copy = c;
+			nested = n;
+		}
+
+		public void write(String path, byte[] contents,
+				  int length) throws IOException
+		{
+			String abs_path = new File(root_dir, path).getPath();
+			MessageDigest digest = createDigest();
+			String hash;
+			String old_hash;
+
+			if (copy != null) {
+				copy.write(path, contents, length);
+			}
+
+			digest.update(contents, 0, length);
+			hash = toHex(digest.digest());
+			old_hash = generated.putIfAbsent(abs_path, hash);
+			if (old_hash == null) {
+				target.write(path, contents, length);
+			} else if (old_hash.equals(hash) || nested) {
+				/* owned by a root containing this one */
+				skipped_files.incrementAndGet();
+			} else {
+				throw new IOException("Conflicting contents " +
+						      "generated for " +
+						      abs_path);
+			}
+		}
+
+		public void close()
+		{
+		}
+	}
+
+	/**
+	 * Create the sink for a root.
+	 * @param root_dir	the root directory
+	 * @param mode		what to do with the files
+	 * @return		the new sink
+	 */
+	private static FileSink createSink(File root_dir, Mode mode)
+	{
+		if (mode == Mode.CHECK) {
+			return new CheckSink(root_dir);
+		} else if (mode == Mode.UPDATE) {
+			return new UpdateSink(root_dir);
+		}
+		return new FileSink(root_dir);
+	}
+
+	/**
+	 * Populate a root with all of its subdirectories, and generate it,
+	 * reusing the rendering of an identical root if there is one.
+	 * @param root_dir	the root directory
+	 * @param pipeline	the pipeline that writes the files
+	 * @param sink		the sink of the root
+	 * @param nested	is the root inside another root?
+	 * @throws IOException	if generation failed
+	 */
+	private void generateFull(File root_dir, GenerationPipeline pipeline,
+				  FileSink sink,
+				  boolean nested) throws IOException
+	{
+		Mainfile root = new Mainfile(root_dir, scan_cache);
+		MessageDigest digest = createDigest();
+		RenderedTree tree = new RenderedTree();
+		RenderedTree existing;
+		OutputSink shared;
+
+		root.populateFull();
+		root.setWorkspace(this);
+		root.digest(digest);
+		existing = rendered.putIfAbsent(toHex(digest.digest()), tree);
+
+		if (existing == null) {
+			shared = new SharedSink(root_dir, sink, tree.files,
+						nested);
+			try {
+				root.generateProject(pipeline, shared);
+			} catch (IOException ioe) {
+				tree.complete(ioe);
+				throw ioe;
+			}
+			tree.complete(null);
+			rendered_roots.incrementAndGet();
+		} else {
+			shared = new SharedSink(root_dir, sink, null, nested);
+			for (Map.Entry<String, byte[]> file :
+			     existing.await().getFiles().entrySet()) {
+				byte[] contents = file.getValue();
+
+				shared.write(file.getKey(), contents,
+					     contents.length);
+			}
+			reused_roots.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Generate the Makefiles of a subdirectory tree of a root,
+	 * reusing the rendering of an identical tree
+	 * at the same path in another root if there is one.
+	 * Otherwise, the tree is rendered into memory, and then written,
+	 * while its own subdirectory trees are also shared.
+	 * Either way, the files are written through the batch,
+	 * waiting for free buffers like rendered files.
+	 * Must not be called for customized trees.
+	 * @param root		the root of the tree
+	 * @param subdir	the top of the tree
+	 * @param batch		the pipeline batch of the root
+	 * @throws IOException	if generation failed
+	 */
+	void generateSubtree(Mainfile root, Makefile subdir,
+			     GenerationPipeline.Batch batch) throws IOException
+	{
+		MessageDigest digest = createDigest();
+		RenderedTree tree = new RenderedTree();
+		RenderedTree existing;
+		String key;
+
+		root.digestSettings(digest);
+		digest.update(root.findSubPath(subdir).getBytes());
+		digest.update((byte) 0);
+		subdir.digest(digest);
+		key = toHex(digest.digest());
+		existing = rendered_subtrees.putIfAbsent(key, tree);
+
+		if (existing == null) {
+			GenerationPipeline.Batch subtree_batch;
+			boolean generated = false;
+
+			subtree_batch = batch.getPipeline()
+					.startBatch(tree.files);
+			try {
+				subdir.generate(subtree_batch);
+				subtree_batch.finish();
+				generated = true;
+			} catch (IOException ioe) {
+				tree.complete(ioe);
+				throw ioe;
+			} finally {
+				if (!generated) {
+					subtree_batch.cancel();
+				}
+			}
+			tree.complete(null);
+			rendered_dirs.incrementAndGet();
+			existing = tree;
+		} else {
+			reused_dirs.incrementAndGet();
+		}
+
+		/* written by the pipeline, like freshly rendered files */
+		for (Map.Entry<String, byte[]> file :
+		     existing.await().getFiles().entrySet()) {
+			GenerationPipeline.RenderBuffer buffer;
+			Charset charset = Charset.defaultCharset();
+			boolean submitted = false;
+
+			buffer = batch.takeBuffer();
+			try {
+				buffer.write(new String(file.getValue(),
+							charset));
+				batch.submit(file.getKey(), buffer);
+				submitted = true;
+			} finally {
+				if (!submitted) {
+					batch.returnBuffer(buffer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Generate one root.
+	 * @param root_dir	the root directory
+	 * @param root		the populated model, or null to populate it
+	 *			with all the subdirectories
+	 * @param pipeline	the pipeline that writes the files
+	 * @param mode		what to do with the files
+	 * @param nested	is the root inside another root?
+	 * @return		the out-of-date files, prefixed by the root,
+	 *			if checking or updating,
+	 *			or an empty list otherwise
+	 * @throws IOException	if generation failed
+	 */
+	private List<String>
+	generateRoot(File root_dir, Mainfile root, GenerationPipeline pipeline,
+		     Mode mode, boolean nested) throws IOException
+	{
+		FileSink sink = createSink(root_dir, mode);
+		List<String> stale_paths = new ArrayList<String>();
+
+		if (root == null) {
+			generateFull(root_dir, pipeline, sink, nested);
+		} else {
+			root.generateProject(pipeline, new SharedSink(root_dir,
+								      sink,
+								      null,
+								      nested));
+			rendered_roots.incrementAndGet();
+		}
+
+		if (sink instanceof CheckSink) {
+			for (String stale_path :
+			     ((CheckSink) sink).getStalePaths()) {
+				stale_paths.add(new File(root_dir, stale_path)
+						.getPath());
+			}
+		}
+		return stale_paths;
+	}
+
+	/**
+	 * Task that generates one root
+	 */
+	private class RootTask implements Callable<List<String>>
+	{
+		/** the root directory */
+		private File root_dir;
+		/** the populated model, or null to populate it */
+		private Mainfile root;
+		/** the pipeline that writes the files */
+		private GenerationPipeline pipeline;
+		/** what to do with the files */
+		private Mode mode;
+		/** is the root inside another root? */
+		private boolean nested;
+
+		/**
+		 * @param rd	root_dir
+		 * @param r	root
+		 * @param p	pipeline
+		 * @param m	mode
+		 * @param n	nested
+		 */
+		public RootTask(File rd, Mainfile r, GenerationPipeline p,
+				Mode m, boolean n)
+		{
+			root_dir = rd;
+			root = r;
+			pipeline = p;
+			mode = m;
+			nested = n;
+		}
+
+		public List<String> call() throws IOException
+		{
+			return generateRoot(root_dir, root, pipeline, mode,
+					    nested);
+		}
+	}
+
+	/**
+	 * Count the other roots containing a root.
+	 * @param root_path	the canonical path of the root
+	 * @return		the number of roots containing it
+	 */
+	private int countContainingRoots(String root_path)
+	{
+		int n_containing = 0;
+
+		for (String other_path : roots.keySet()) {
+			if (root_path.startsWith(other_path +
+						 File.separator)) {
+				n_containing++;
+			}
+		}
+		return n_containing;
+	}
+
+	/**
+	 * Generate all the roots in parallel,
+	 * except that the roots inside other roots
+	 * are generated after the roots containing them.
+	 * A root that fails does not stop the others;
+	 * the failures can be found with getFailures() afterwards.
+	 * @param pipeline	the pipeline that writes the files
+	 * @param mode		what to do with the files
+	 * @param n_jobs	number of roots generated at the same time
+	 * @return		sorted paths of the out-of-date files,
+	 *			if checking or updating
+	 * @throws InterruptedIOException	if interrupted while waiting
+	 */
+	public synchronized List<String>
+	generate(GenerationPipeline pipeline, Mode mode,
+		 int n_jobs) throws InterruptedIOException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(n_jobs);
+		/* the roots, by the number of roots containing them */
+		Map<Integer, Map<String, Mainfile>>
+		depths = new TreeMap<Integer, Map<String, Mainfile>>();
+		List<String> stale_paths = new ArrayList<String>();
+
+		failures.clear();
+		generated.clear();
+		rendered.clear();
+		rendered_subtrees.clear();
+		for (Map.Entry<String, Mainfile> root : roots.entrySet()) {
+			int depth = countContainingRoots(root.getKey());
+			Map<String, Mainfile> depth_roots = depths.get(depth);
+
+			if (depth_roots == null) {
+				depth_roots = new LinkedHashMap<String,
+								Mainfile>();
+				depths.put(depth, depth_roots);
+			}
+			depth_roots.put(root.getKey(), root.getValue());
+		}
+
+		try {
+			for (Map.Entry<Integer, Map<String, Mainfile>> depth :
+			     depths.entrySet()) {
+				generateRoots(executor, depth.getValue(),
+					      pipeline, mode,
+					      depth.getKey() > 0, stale_paths);
+			}
+		} catch (InterruptedException ie) {
+			executor.shutdownNow();
+			throw new InterruptedIOException();
+		}
+		executor.shutdown();
+
+		Collections.sort(stale_paths);
+		return stale_paths;
+	}
+
+	/**
+	 * Generate some of the roots in parallel, and wait for them.
+	 * @param executor	the executor running the roots
+	 * @param some_roots	the roots to generate
+	 * @param pipeline	the pipeline that writes the files
+	 * @param mode		what to do with the files
+	 * @param nested	are the roots inside other roots?
+	 * @param stale_paths	the list to which to add
+	 *			the out-of-date files
+	 * @throws InterruptedException	if interrupted while waiting
+	 */
+	private void
+	generateRoots(ExecutorService executor,
+		      Map<String, Mainfile> some_roots,
+		      GenerationPipeline pipeline, Mode mode, boolean nested,
+		      List<String> stale_paths) throws InterruptedException
+	{
+		Map<File, Future<List<String>>>
+		results = new LinkedHashMap<File, Future<List<String>>>();
+
+		for (Map.Entry<String, Mainfile> root :
+		     some_roots.entrySet()) {
+			File root_dir = new File(root.getKey());
+			RootTask task = new RootTask(root_dir, root.getValue(),
+						     pipeline, mode, nested);
+
+			results.put(root_dir, executor.submit(task));
+		}
+
+		for (Map.Entry<File, Future<List<String>>> result :
+		     results.entrySet()) {
+			try {
+				stale_paths.addAll(result.getValue().get());
+			} catch (ExecutionException ee) {
+				Throwable cause = ee.getCause();
+
+				failures.put(result.getKey(),
+					     cause instanceof IOException ?
+					     (IOException) cause :
+					     new IOException(cause));
+			}
+		}
+	}
+
+	/**
+	 * @return	the roots that failed in the last generation,
+	 *		with their errors
+	 */
+	public synchronized Map<File, IOException> getFailures()
+	{
+		return new LinkedHashMap<File, IOException>(failures);
+	}
+
+	/**
+	 * @return	number of roots rendered
+	 */
+	public long getRenderedRoots()
+	{
+		return rendered_roots.get();
+	}
+
+	/**
+	 * @return	number of roots whose rendered files were reused
+	 */
+	public long getReusedRoots()
+	{
+		return reused_roots.get();
+	}
+
+	/**
+	 * @return	number of subdirectory trees rendered
+	 */
+	public long getRenderedDirs()
+	{
+		return rendered_dirs.get();
+	}
+
+	/**
+	 * @return	number of subdirectory trees
+	 *		whose rendered files were reused
+	 */
+	public long getReusedDirs()
+	{
+		return reused_dirs.get();
+	}
+
+	/**
+	 * @return	number of files skipped,
+	 *		since they were already generated through another root
+	 */
+	public long getSkippedFiles()
+	{
+		return skipped_files.get();
+	}
+
+	/**
+	 * @return	summary of the counters
+	 */
+	public String toString()
+	{
+		return String.format("workspace: %d roots rendered, " +
+				     "%d reused, " +
+				     "%d directory trees rendered, " +
+				     "%d reused, %d files skipped, " +
+				     "%d directories scanned, %d reused",
+				     getRenderedRoots(), getReusedRoots(),
+				     getRenderedDirs(), getReusedDirs(),
+				     getSkippedFiles(), scan_cache.getScans(),
+				     scan_cache.getHits());
+	}
+}
@@ -26,6 +26,11 @@ public class FileFormatter extends BufferedWriter
 	 * Initialized to true
 	 */
 	private boolean new_line;
+	/**
+	 * Written at the start of every line, after the indentation.
+	 * Initialized to empty
+	 */
+	private String line_prefix;
 
 	/**
 	 * General constructor helper that initializes fields in this class,
@@ -35,6 +40,7 @@ public class FileFormatter extends BufferedWriter
 	{
 		indentation = 0;
 		new_line = true;
+		line_prefix = "";
 	}
 
 	/**
@@ -103,6 +109,16 @@ public class FileFormatter extends BufferedWriter
 		indentation--;
 	}
 
+	/**
+	 * Set the text to write at the start of every following line,
+	 * after the indentation
+	 * @param lp	the new line prefix, or empty for none
+	 */
+	public void setLinePrefix(String lp)
+	{
+		line_prefix = lp;
+	}
+
 	/**
 	 * Write indentation characters if Writer is on new line,
 	 * and disable automatic indenting on this line, which is no longer new
@@ -119,6 +135,7 @@ public class FileFormatter extends BufferedWriter
 				indents[indent_i] =  INDENT_CHAR;
 			}
 			super.write(indents, 0, indentation);
+			super.write(line_prefix, 0, line_prefix.length());
 
 			/* line is no longer new */
 			new_line = false;
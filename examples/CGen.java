@@ -47,6 +47,8 @@ public class CGen extends Mainfile
 						    IOException
 	{
 		super(bd);
+		/* build optimized code unless another PROFILE is chosen */
+		addDefaultProfiles();
 
 		src = new Makefile(new File(bd, SRC_DIR), this);
 		libs = new Makefile(new File(bd, LIBS_DIR), this);
@@ -68,6 +70,13 @@ public class CGen extends Mainfile
 		addSubdir(libs);
 		addSubdir(src);
 		addSubdir(tests);
+		/*
+		 * The external projects must be ready
+		 * before anything is compiled against them,
+		 * but "src" and "tests" can be built in parallel.
+		 */
+		addOrder(SRC_DIR, LIBS_DIR);
+		addOrder(TESTS_DIR, LIBS_DIR);
 
 		src.populateFull();
 		tests.populateFull();
@@ -95,7 +104,8 @@ public class CGen extends Mainfile
 
 		public ArchiveCopyTarget()
 		{
-			super(archive_file_name);
+			super(archive_file_name,
+			      addSubdirProduct(src, archive_file_name));
 		}
 
 		protected void
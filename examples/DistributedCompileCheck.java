@@ -0,0 +1,288 @@
+/**
+ * DistributedCompileCheck.java
+ * Example checking compile workers and a remote object cache on localhost
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import de.yjk.cgen.CacheServer;
+import de.yjk.cgen.CompileClient;
+import de.yjk.cgen.CompileWorker;
+import de.yjk.cgen.ObjectCache;
+
+/**
+ * Starts two CompileWorkers and a CacheServer on free ports of localhost,
+ * and compiles a few sources in a temporary directory through them:
+ * with a CompileClient, when one worker is down, when all are down,
+ * and with ObjectCaches that compile their misses on the workers
+ * and share the objects through the CacheServer.
+ * Prints each check, and exits with a non-zero status if any failed.
+ * The compiler, "cc" by default, can be given as the first argument.
+ */
+public class DistributedCompileCheck
+{
+	/** exit status if some checks failed */
+	private static final int FAILED_STATUS = 1;
+	/** exit status if the check itself failed */
+	private static final int ERROR_STATUS = 2;
+	/** compiler used if none is given */
+	private static final String DEFAULT_COMPILER = "cc";
+	/** number of jobs of each worker */
+	private static final int WORKER_JOBS = 2;
+	/** timeout of connecting to a worker or the cache, in milliseconds */
+	private static final int TIMEOUT_MS = 2000;
+	/** maximum size of each object cache, in bytes */
+	private static final long CACHE_BYTES = 1 << 24;
+	/** token required to store objects in the remote cache */
+	private static final String TOKEN = "example-token";
+	/** host of the workers and the cache */
+	private static final String HOST = "localhost";
+	/** prefix of the temporary directory */
+	private static final String TEMP_PREFIX = "distributed-compile";
+	/** number of sources compiled */
+	private static final int N_SOURCES = 4;
+	/** format of the sources, each returning its number */
+	private static final String SOURCE_FMT = "int f%1$d(void) " +
+						 "{ return %1$d; }\n";
+
+	/** number of checks that failed */
+	private static int n_failures = 0;
+
+	/**
+	 * Thread accepting the jobs of a worker until it is closed
+	 */
+	private static class WorkerThread extends Thread
+	{
+		/** the worker */
+		private CompileWorker worker;
+
+		/**
+		 * @param w	worker
+		 */
+		public WorkerThread(CompileWorker w)
+		{
+			worker = w;
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			try {
+				worker.serve();
+			} catch (IOException ioe) {
+				System.out.println("Worker failed: " + ioe);
+			}
+		}
+	}
+
+	/**
+	 * Print the result of a check, and count it if it failed.
+	 * @param description	what was checked
+	 * @param passed	did the check pass?
+	 */
+	private static void check(String description, boolean passed)
+	{
+		System.out.println((passed ? "ok     " : "FAILED ") +
+				   description);
+		if (!passed) {
+			n_failures++;
+		}
+	}
+
+	/**
+	 * Generate the command compiling a source into an object.
+	 * @param compiler	the compiler
+	 * @param dir		the directory of the source
+	 * @param source_i	the number of the source
+	 * @return		the command and its arguments
+	 */
+	private static List<String> genCompile(String compiler, File dir,
+					       int source_i)
+	{
+		return Arrays.asList(compiler, "-O2", "-c", "-o",
+				     new File(dir, "f" + source_i + ".o")
+				     .getPath(),
+				     new File(dir, "f" + source_i + ".c")
+				     .getPath());
+	}
+
+	/**
+	 * Check that a source was compiled into its object.
+	 * @param description	what was checked
+	 * @param status	the exit status of the compile
+	 * @param dir		the directory of the source
+	 * @param source_i	the number of the source
+	 */
+	private static void checkObject(String description, int status,
+					File dir, int source_i)
+	{
+		check(description, status == 0 &&
+				   new File(dir, "f" + source_i + ".o")
+				   .isFile());
+	}
+
+	/**
+	 * Find a counter in the description of a worker or server,
+	 * which lists the counters as names followed by values.
+	 * @param counters	the worker or server
+	 * @param name		the name of the counter
+	 * @return		the value of the counter,
+	 *			or -1 if it is missing
+	 */
+	private static int findCount(Object counters, String name)
+	{
+		String[] words = counters.toString().split(" ");
+
+		for (int word_i = 0; word_i + 1 < words.length; word_i++) {
+			if (words[word_i].equals(name)) {
+				return Integer.parseInt(words[word_i + 1]);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Delete a directory and everything in it.
+	 * @param dir	the directory
+	 */
+	private static void deleteTree(File dir)
+	{
+		File[] subfiles = dir.listFiles();
+
+		if (subfiles != null) {
+			for (File subfile : subfiles) {
+				deleteTree(subfile);
+			}
+		}
+		dir.delete();
+	}
+
+	public static void main(String[] args)
+	{
+		String compiler = args.length > 0 ? args[0] : DEFAULT_COMPILER;
+		List<String> compilers = Arrays.asList(compiler);
+		CompileWorker first_worker = new CompileWorker(compilers,
+							       WORKER_JOBS);
+		CompileWorker second_worker = new CompileWorker(compilers,
+								WORKER_JOBS);
+		CacheServer cache_server = null;
+		File dir = null;
+
+		try {
+			int first_port;
+			int second_port;
+			String workers;
+			String remote;
+			ObjectCache cache;
+			CompileClient client;
+			int n_compiled;
+			int status;
+
+			dir = Files.createTempDirectory(TEMP_PREFIX).toFile();
+			for (int source_i = 0; source_i < N_SOURCES;
+			     source_i++) {
+				Files.write(new File(dir, "f" + source_i + ".c")
+					    .toPath(),
+					    String.format(SOURCE_FMT, source_i)
+					    .getBytes());
+			}
+
+			first_port = first_worker.open(null, 0);
+			second_port = second_worker.open(null, 0);
+			new WorkerThread(first_worker).start();
+			new WorkerThread(second_worker).start();
+			cache = new ObjectCache(new File(dir, "server"),
+						CACHE_BYTES, false);
+			cache_server = new CacheServer(cache);
+			cache_server.setToken(TOKEN);
+			remote = "http://" + HOST + ":" +
+				 cache_server.start(null, 0);
+			workers = HOST + ":" + first_port + " " +
+				  HOST + ":" + second_port;
+
+			/* both workers up */
+			status = new CompileClient(CompileClient
+						   .parseWorkers(workers),
+						   TIMEOUT_MS)
+				 .run(genCompile(compiler, dir, 0));
+			checkObject("compiled through the client", status, dir,
+				    0);
+			check("compiled on a worker",
+			      findCount(first_worker, "compiled") +
+			      findCount(second_worker, "compiled") == 1);
+
+			/* one worker down */
+			first_worker.close();
+			n_compiled = findCount(second_worker, "compiled");
+			status = new CompileClient(CompileClient
+						   .parseWorkers(workers),
+						   TIMEOUT_MS)
+				 .run(genCompile(compiler, dir, 1));
+			checkObject("compiled with one worker down", status,
+				    dir, 1);
+			check("compiled on the other worker",
+			      findCount(second_worker, "compiled") ==
+			      n_compiled + 1);
+
+			/* all workers down */
+			second_worker.close();
+			status = new CompileClient(CompileClient
+						   .parseWorkers(workers),
+						   TIMEOUT_MS)
+				 .run(genCompile(compiler, dir, 2));
+			checkObject("compiled locally with all workers down",
+				    status, dir, 2);
+
+			/* a miss compiled on a worker, and shared */
+			second_worker = new CompileWorker(compilers,
+							  WORKER_JOBS);
+			workers = HOST + ":" + second_worker.open(null, 0);
+			new WorkerThread(second_worker).start();
+			cache = new ObjectCache(new File(dir, "first"),
+						CACHE_BYTES, false);
+			cache.setRemote(remote);
+			cache.setToken(TOKEN);
+			client = new CompileClient(CompileClient
+						   .parseWorkers(workers),
+						   TIMEOUT_MS);
+			cache.setClient(client);
+			status = cache.run(genCompile(compiler, dir, 3));
+			checkObject("compiled a cache miss", status, dir, 3);
+			check("compiled the miss on a worker",
+			      findCount(second_worker, "compiled") == 1);
+			check("sent the object to the remote cache",
+			      findCount(cache_server, "stores") == 1);
+
+			/* a hit in the remote cache, not compiled again */
+			new File(dir, "f3.o").delete();
+			cache = new ObjectCache(new File(dir, "second"),
+						CACHE_BYTES, false);
+			cache.setRemote(remote);
+			status = cache.run(genCompile(compiler, dir, 3));
+			checkObject("restored from the remote cache", status,
+				    dir, 3);
+			check("fetched without compiling",
+			      findCount(cache_server, "hits") == 1 &&
+			      findCount(second_worker, "compiled") == 1);
+			second_worker.close();
+		} catch (IOException ioe) {
+			System.out.println("Failed to run the checks: " + ioe);
+			ioe.printStackTrace();
+			System.exit(ERROR_STATUS);
+		} finally {
+			if (cache_server != null) {
+				cache_server.stop();
+			}
+			if (dir != null) {
+				deleteTree(dir);
+			}
+		}
+
+		if (n_failures > 0) {
+			System.exit(FAILED_STATUS);
+		}
+	}
+}
@@ -274,13 +274,8 @@ public class GitTargets
 			 */
 			if (is_first) {
 				String
-				make_command = MakeFormatter
-					       .genList(MakeFormatter
-							.genUseVar(Makefile
-								   .MAKE_VAR),
-							Makefile
-							.MAKE_SWITCH_FLAG,
-							project);
+				make_command = Makefile
+					       .genRecursiveMake(project);
 
 				output.write(make_command);
 				output.newLine();
@@ -0,0 +1,54 @@
+/**
+ * RecursiveCheck.java
+ * Example for checking that the Makefiles of a project,
+ * as indicated in the first command line argument, are up to date
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import de.yjk.cgen.Mainfile;
+
+/**
+ * Just contains the main method, and the constants used in it.
+ * Prints the out-of-date files, and exits with a non-zero status
+ * if there are any, without writing anything.
+ */
+public class RecursiveCheck
+{
+	/** exit status if some files are out of date */
+	private static final int STALE_STATUS = 1;
+	/** exit status if the check itself failed */
+	private static final int ERROR_STATUS = 2;
+
+	public static void main(String[] args)
+	{
+		List<String> stale_paths;
+
+		if (args.length == 0) {
+			System.out.println("Please give the directory name.");
+			System.exit(ERROR_STATUS);
+		}
+
+		try {
+			Mainfile root = new Mainfile(new File(args[0]));
+			/* recursively populate with all the subdirectories. */
+			root.populateFull();
+			/* compare Makefiles and common resource file */
+			stale_paths = root.checkProject();
+		} catch (IOException ioe) {
+			System.out.println("Failed to check Makefiles: " +
+					   ioe);
+			ioe.printStackTrace();
+			System.exit(ERROR_STATUS);
+			return;
+		}
+
+		for (String stale_path : stale_paths) {
+			System.out.println(stale_path);
+		}
+		if (!stale_paths.isEmpty()) {
+			System.exit(STALE_STATUS);
+		}
+	}
+}